@@ -0,0 +1,114 @@
+package bench;
+
+import java.util.*;
+
+// Генерируемые наборы выражений для бенчмарков. Наборы детерминированы (фиксированное зерно)
+// и подобраны под диалект: в каждом только операторы, которые этот вариант понимает,
+// и только значения, при которых вычисление не бросает исключений.
+public final class Corpora {
+    public static final int SIZE = 64;
+
+    private static final String[][] OPERATORS = {
+        {},
+        {"+", "-", "*", "/", "//", "^"},
+        {"+", "-", "*", "/", "^", "**"},
+        {"+", "-", "*", "/", "//", "^", "**"},
+    };
+
+    // Имена переменных в наборах для пакетного вычисления (см. generate(kind, dialect, true))
+    public static final String[] VARIABLES = {"x", "y", "z"};
+
+    private Corpora() {
+    }
+
+    // short — несколько чисел и операторов; nested — глубокая вложенность скобок;
+    // flat — длинная сумма без скобок; functions — log/exp/факториал (в ПР№1 функций нет,
+    // поэтому там вместо них степени и целочисленное деление)
+    public static String[] generate(String kind, int dialect) {
+        return generate(kind, dialect, false);
+    }
+
+    // variables: примерно половина чисел заменена переменными из VARIABLES. Показатели степеней,
+    // делители // и аргументы факториала остаются числами, поэтому значения переменных должны быть
+    // только положительными — тогда вычисление, как и в наборах без переменных, не бросает исключений
+    public static String[] generate(String kind, int dialect, boolean variables) {
+        Random random = new Random(42);
+        String[] corpus = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            corpus[i] = switch (kind) {
+                case "short" -> shortExpression(random, dialect, variables);
+                case "nested" -> nested(random, dialect, 40, variables);
+                case "flat" -> flat(random, 500, variables);
+                case "functions" -> functions(random, dialect, 12, variables);
+                default -> throw new IllegalArgumentException("Неизвестный набор: " + kind);
+            };
+        }
+        return corpus;
+    }
+
+    private static String shortExpression(Random random, int dialect, boolean variables) {
+        String[] operators = OPERATORS[dialect];
+        StringBuilder sb = new StringBuilder().append(operand(random, variables));
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            String op = operators[random.nextInt(operators.length)];
+            // Степени с небольшим показателем, чтобы результат оставался конечным
+            sb.append(op).append(op.equals("^") || op.equals("**") ? String.valueOf(1 + random.nextInt(3)) : operand(random, variables));
+        }
+        return sb.toString();
+    }
+
+    private static String nested(Random random, int dialect, int depth, boolean variables) {
+        String[] operators = {"+", "-", "*", "/"};
+        StringBuilder sb = new StringBuilder(operand(random, variables));
+        for (int i = 0; i < depth; i++) {
+            String op = operators[random.nextInt(operators.length)];
+            if (random.nextBoolean()) {
+                sb.insert(0, '(').append(op).append(operand(random, variables)).append(')');
+            } else {
+                sb.insert(0, operand(random, variables) + op + "(").append(')');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String flat(Random random, int terms, boolean variables) {
+        StringBuilder sb = new StringBuilder(terms * 5).append(operand(random, variables));
+        for (int i = 1; i < terms; i++) {
+            sb.append(random.nextBoolean() ? '+' : '-').append(operand(random, variables));
+        }
+        return sb.toString();
+    }
+
+    private static String functions(Random random, int dialect, int calls, boolean variables) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < calls; i++) {
+            if (i > 0) sb.append(random.nextBoolean() ? '+' : '*');
+            int pick = random.nextInt(3);
+            if (dialect == 1) {
+                sb.append(switch (pick) {
+                    case 0 -> operand(random, variables) + "^" + (1 + random.nextInt(3));
+                    case 1 -> "(" + operand(random, variables) + "//" + (1 + random.nextInt(9)) + ")";
+                    default -> "2^0.5";
+                });
+            } else {
+                sb.append(switch (pick) {
+                    case 0 -> "log(" + operand(random, variables) + ")";
+                    case 1 -> "exp(" + random.nextInt(3) + "." + random.nextInt(10) + ")";
+                    default -> (1 + random.nextInt(6)) + "!";
+                });
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String operand(Random random, boolean variables) {
+        return variables && random.nextBoolean() ? VARIABLES[random.nextInt(VARIABLES.length)] : number(random);
+    }
+
+    // Положительное число без нуля: деление в наборах никогда не бывает на ноль
+    private static String number(Random random) {
+        int whole = 1 + random.nextInt(99);
+        return random.nextInt(4) == 0 ? whole + "." + (1 + random.nextInt(9)) : String.valueOf(whole);
+    }
+}
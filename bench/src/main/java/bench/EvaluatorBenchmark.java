@@ -0,0 +1,158 @@
+package bench;
+
+import calculator.engine.Dialect;
+import calculator.engine.ExpressionEvaluator;
+import calculator.engine.ExpressionEvaluator.CompiledExpression;
+import calculator.engine.ExpressionEvaluator.ExpressionFunction;
+import calculator.engine.ExpressionEvaluator.Tokens;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Общие бенчмарки этапов вычислителя. Движок один, варианты (pr1, pr2, pr3) различаются диалектом:
+// наследник в пакете варианта отдаёт его Main.DIALECT. Каждый вызов обходит весь набор,
+// поэтому результаты и скорость выделения памяти (gc.alloc.rate.norm) — на одно выражение.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class EvaluatorBenchmark {
+    // Строк в пакетном вычислении evaluateColumns; результат — на одно выражение по всем строкам
+    private static final int ROWS = 1024;
+    private static final double[] NO_VARIABLES = new double[0];
+
+    @Param({"short", "nested", "flat", "functions"})
+    public String corpus;
+
+    private String[] inputs;
+    private Tokens[] tokens;
+    private CompiledExpression[] programs;
+    // Те же программы, скомпилированные в байткод (CompiledExpression.toBytecode)
+    private ExpressionFunction[] functions;
+    private double[] stack;
+    // Программы evaluateColumns — тот же вид набора, но с переменными (Corpora.generate(..., true)),
+    // и столбцы значений для каждой: columns[i][slot] в порядке getVariables() программы i
+    private CompiledExpression[] columnPrograms;
+    private double[][][] columns;
+    private double[] rows;
+    private ExpressionEvaluator evaluator;
+    // Кэш на одно выражение: каждый вызов заново разбирает и компилирует текст
+    private ExpressionEvaluator cold;
+
+    // Номер варианта для наборов выражений (Corpora)
+    protected abstract int dialect();
+
+    protected abstract Dialect syntax();
+
+    @Setup
+    public void setup() throws Exception {
+        evaluator = new ExpressionEvaluator(syntax());
+        cold = new ExpressionEvaluator(syntax(), 1);
+        inputs = Corpora.generate(corpus, dialect());
+        tokens = new Tokens[inputs.length];
+        programs = new CompiledExpression[inputs.length];
+        int frame = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            tokens[i] = evaluator.tokenize(inputs[i]);
+            programs[i] = evaluator.infixToRPN(tokens[i]);
+            frame = Math.max(frame, programs[i].getFrameSize());
+            evaluator.evaluate(inputs[i]);
+            evaluator.evaluateDecimal(inputs[i], MathContext.DECIMAL128);
+        }
+        stack = new double[frame];
+        functions = new ExpressionFunction[programs.length];
+        for (int i = 0; i < programs.length; i++) functions[i] = programs[i].toBytecode();
+
+        // Значения переменных положительны (1..100): в наборах с переменными тогда нет ни деления
+        // на ноль, ни логарифма неположительного числа
+        Random random = new Random(7);
+        double[][] values = new double[Corpora.VARIABLES.length][ROWS];
+        for (double[] column : values) {
+            for (int row = 0; row < ROWS; row++) column[row] = 1 + random.nextDouble() * 99;
+        }
+        String[] variableInputs = Corpora.generate(corpus, dialect(), true);
+        columnPrograms = new CompiledExpression[variableInputs.length];
+        columns = new double[variableInputs.length][][];
+        for (int i = 0; i < variableInputs.length; i++) {
+            columnPrograms[i] = evaluator.infixToRPN(evaluator.tokenize(variableInputs[i]));
+            List<String> names = columnPrograms[i].getVariables();
+            columns[i] = new double[names.size()][];
+            for (int slot = 0; slot < names.size(); slot++) {
+                columns[i][slot] = values[Arrays.asList(Corpora.VARIABLES).indexOf(names.get(slot))];
+            }
+        }
+        rows = new double[ROWS];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void tokenize(Blackhole bh) {
+        for (String input : inputs) bh.consume(evaluator.tokenize(input));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void infixToRPN(Blackhole bh) throws Exception {
+        for (Tokens t : tokens) bh.consume(evaluator.infixToRPN(t));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void evalRPN(Blackhole bh) throws Exception {
+        for (CompiledExpression program : programs) bh.consume(ExpressionEvaluator.evalRPN(program, stack, NO_VARIABLES));
+    }
+
+    // Против evalRPN: насколько сгенерированный класс быстрее интерпретатора на том же наборе
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void evalBytecode(Blackhole bh) throws Exception {
+        for (ExpressionFunction function : functions) bh.consume(function.eval(NO_VARIABLES));
+    }
+
+    // Цена генерации: перевод в ОПН и новый класс на каждое выражение. Вместе с evalRPN и evalBytecode
+    // показывает, после скольких вычислений toBytecode окупается
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void toBytecode(Blackhole bh) throws Exception {
+        for (Tokens t : tokens) bh.consume(evaluator.infixToRPN(t).toBytecode());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void validateExpression(Blackhole bh) {
+        for (String input : inputs) bh.consume(evaluator.validateExpression(input));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void evaluate(Blackhole bh) throws Exception {
+        for (String input : inputs) bh.consume(evaluator.evaluate(input));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void evaluateCold(Blackhole bh) throws Exception {
+        for (String input : inputs) bh.consume(cold.evaluate(input));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void evaluateDecimal(Blackhole bh) throws Exception {
+        for (String input : inputs) bh.consume(evaluator.evaluateDecimal(input, MathContext.DECIMAL128));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpora.SIZE)
+    public void evaluateColumns(Blackhole bh) throws Exception {
+        for (int i = 0; i < columnPrograms.length; i++) {
+            columnPrograms[i].evaluate(columns[i], rows);
+            bh.consume(rows);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package pr1;
+
+import bench.EvaluatorBenchmark;
+import calculator.engine.Dialect;
+
+// Общие бенчмарки с диалектом ПР№1
+public class Pr1Benchmark extends EvaluatorBenchmark {
+    @Override
+    protected int dialect() {
+        return 1;
+    }
+
+    @Override
+    protected Dialect syntax() {
+        return Main.DIALECT;
+    }
+}
@@ -0,0 +1,17 @@
+package pr2;
+
+import bench.EvaluatorBenchmark;
+import calculator.engine.Dialect;
+
+// Общие бенчмарки с диалектом ПР№2
+public class Pr2Benchmark extends EvaluatorBenchmark {
+    @Override
+    protected int dialect() {
+        return 2;
+    }
+
+    @Override
+    protected Dialect syntax() {
+        return Main.DIALECT;
+    }
+}
@@ -0,0 +1,17 @@
+package pr3;
+
+import bench.EvaluatorBenchmark;
+import calculator.engine.Dialect;
+
+// Общие бенчмарки с диалектом ПР№3
+public class Pr3Benchmark extends EvaluatorBenchmark {
+    @Override
+    protected int dialect() {
+        return 3;
+    }
+
+    @Override
+    protected Dialect syntax() {
+        return Main.DIALECT;
+    }
+}
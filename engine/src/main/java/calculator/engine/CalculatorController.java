@@ -0,0 +1,270 @@
+package calculator.engine;
+
+import java.io.*;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Режимы запуска калькулятора поверх модели: интерактивный, пакетный и пакетный по отображению файла
+public class CalculatorController {
+    private static final int BATCH_BLOCK = 8192;
+    private static final int MAPPED_REGION = 1 << 30;
+    private static final int MAPPED_CHUNK = 1 << 20;
+
+    private final ExpressionEvaluator model;
+    private final ConsoleView view;
+    private final boolean exact;
+    private final MathContext decimal;
+    // Пояснение к нарушению правил ввода и режим интерактивного ввода — из диалекта модели
+    private final String invalidMessage;
+    private final boolean repeat;
+
+    public CalculatorController(ExpressionEvaluator model, ConsoleView view) {
+        this(model, view, false);
+    }
+
+    // exact — точный режим: целые результаты без потери точности (evaluateExact)
+    public CalculatorController(ExpressionEvaluator model, ConsoleView view, boolean exact) {
+        this(model, view, exact, null);
+    }
+
+    // decimal — десятичный режим с этой точностью (evaluateDecimal); null — режим задаёт exact
+    public CalculatorController(ExpressionEvaluator model, ConsoleView view, boolean exact, MathContext decimal) {
+        this.model = model;
+        this.view = view;
+        this.exact = exact;
+        this.decimal = decimal;
+        this.invalidMessage = model.getDialect().invalidMessage();
+        this.repeat = model.getDialect().repeatsInput();
+    }
+
+    // Одно выражение или, если диалект повторяет ввод (Dialect.repeatsInput), выражения до exit
+    public void run() {
+        do {
+            try {
+                String expr = view.getInputExpression();
+                if (repeat && expr.equalsIgnoreCase("exit")) {
+                    break;
+                }
+                if (decimal != null) {
+                    view.showResult(model.evaluateDecimalChecked(expr, decimal));
+                } else if (exact) {
+                    view.showResult(model.evaluateExactChecked(expr));
+                } else {
+                    view.showResult(model.evaluateChecked(expr));
+                }
+            } catch (ExpressionEvaluator.InvalidExpressionException e) {
+                view.showError(invalidMessage + " " + e.getMessage());
+            } catch (Exception e) {
+                view.showError(e.getMessage());
+            }
+        } while (repeat);
+    }
+
+    // Пакетный режим: выражения по одному на строку, результаты в том же порядке по одному на строку
+    // (число или "Ошибка: ..."). Строки читаются блоками, блок делится между потоками пула,
+    // и пока он считается, читается следующий. Весь вывод идёт через один большой буфер.
+    public void runBatch(BufferedReader in, Writer out, int threads) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+        try {
+            String[] lines = readBlock(in);
+            while (lines.length > 0) {
+                List<Future<String[]>> parts = submitBlock(pool, lines, threads);
+                String[] next = readBlock(in);
+                for (Future<String[]> part : parts) {
+                    for (String line : part.get()) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                }
+                lines = next;
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            writer.flush();
+            pool.shutdownNow();
+        }
+    }
+
+    private static String[] readBlock(BufferedReader in) throws IOException {
+        String[] block = new String[BATCH_BLOCK];
+        int count = 0;
+        String line;
+        while (count < block.length && (line = in.readLine()) != null) {
+            block[count++] = line;
+        }
+        return count == block.length ? block : Arrays.copyOf(block, count);
+    }
+
+    private List<Future<String[]>> submitBlock(ExecutorService pool, String[] lines, int threads) {
+        List<Future<String[]>> parts = new ArrayList<>(threads);
+        int step = (lines.length + threads - 1) / threads;
+        for (int from = 0; from < lines.length; from += step) {
+            int start = from, end = Math.min(lines.length, from + step);
+            parts.add(pool.submit(() -> {
+                String[] results = new String[end - start];
+                for (int i = start; i < end; i++) {
+                    results[i - start] = evaluateLine(lines[i]);
+                }
+                return results;
+            }));
+        }
+        return parts;
+    }
+
+    private String evaluateLine(String expr) {
+        try {
+            return evaluateToString(expr);
+        } catch (Exception e) {
+            return "Ошибка: " + errorMessage(e);
+        }
+    }
+
+    // Результат выражения в текущем режиме (double, точном или десятичном) в виде текста
+    String evaluateToString(String expr) throws Exception {
+        if (decimal != null) return model.evaluateDecimalChecked(expr, decimal).toString();
+        return exact ? model.evaluateExactChecked(expr).toString() : String.valueOf(model.evaluateChecked(expr));
+    }
+
+    String errorMessage(Exception e) {
+        if (e instanceof ExpressionEvaluator.InvalidExpressionException) return invalidMessage + " " + e.getMessage();
+        return e.getMessage();
+    }
+
+    // Пакетный режим по файлу через отображение в память. Файл отображается регионами до 1 ГБ,
+    // регион режется на куски примерно по мегабайту по границам строк, куски считаются в пуле,
+    // а результаты пишутся в порядке кусков. Строки разбираются прямо из байтов отображения,
+    // без String на строку; строки с не-ASCII байтами декодируются как UTF-8.
+    public void runMapped(Path file, Writer out, int threads) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(MAPPED_REGION, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int limit = length;
+                if (position + length < size) {
+                    // Незаконченная строка в конце региона переходит в следующий
+                    while (limit > 0 && region.get(limit - 1) != '\n') limit--;
+                    if (limit == 0) throw new IOException("Строка длиннее " + MAPPED_REGION + " байт");
+                }
+                for (int start = 0; start < limit; ) {
+                    int end = Math.min(limit, start + MAPPED_CHUNK);
+                    while (end < limit && region.get(end - 1) != '\n') end++;
+                    ByteBuffer chunk = region.slice(start, end - start);
+                    // Не больше двух кусков на поток в работе, чтобы вывод не копился в памяти
+                    if (pending.size() >= 2 * threads) writer.write(pending.poll().get());
+                    pending.add(pool.submit(() -> evaluateChunk(chunk)));
+                    start = end;
+                }
+                position += limit;
+            }
+            while (!pending.isEmpty()) writer.write(pending.poll().get());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            writer.flush();
+            pool.shutdownNow();
+        }
+    }
+
+    // Конец строки — \n, \r или \r\n, как у BufferedReader.readLine
+    private String evaluateChunk(ByteBuffer chunk) {
+        StringBuilder results = new StringBuilder(chunk.limit());
+        String separator = System.lineSeparator();
+        ByteLine line = new ByteLine(chunk);
+        int limit = chunk.limit();
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            boolean ascii = true;
+            byte b;
+            while (end < limit && (b = chunk.get(end)) != '\n' && b != '\r') {
+                if (b < 0) ascii = false;
+                end++;
+            }
+            if (ascii) {
+                line.set(start, end - start);
+                evaluateLine(line, results);
+            } else {
+                evaluateLine(StandardCharsets.UTF_8.decode(chunk.slice(start, end - start)), results);
+            }
+            results.append(separator);
+            if (end < limit) {
+                if (chunk.get(end) == '\r' && end + 1 < limit && chunk.get(end + 1) == '\n') end++;
+                end++;
+            }
+            start = end;
+        }
+        return results.toString();
+    }
+
+    private void evaluateLine(CharSequence expr, StringBuilder results) {
+        try {
+            if (decimal != null) results.append(model.evaluateDecimalDirect(expr, decimal));
+            else if (exact) results.append(model.evaluateExactDirect(expr));
+            else results.append(model.evaluateDirect(expr));
+        } catch (ExpressionEvaluator.InvalidExpressionException e) {
+            results.append("Ошибка: ").append(invalidMessage).append(' ').append(e.getMessage());
+        } catch (Exception e) {
+            results.append("Ошибка: ").append(e.getMessage());
+        }
+    }
+
+    // Строка из отображённого файла как CharSequence: символы читаются прямо из байтов (только ASCII)
+    private static final class ByteLine implements CharSequence {
+        private final ByteBuffer bytes;
+        private int offset;
+        private int length;
+
+        ByteLine(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        private ByteLine(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void set(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            Objects.checkIndex(index, length);
+            return (char) bytes.get(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            Objects.checkFromToIndex(start, end, length);
+            return new ByteLine(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            byte[] text = new byte[length];
+            bytes.get(offset, text);
+            return new String(text, StandardCharsets.US_ASCII);
+        }
+    }
+}
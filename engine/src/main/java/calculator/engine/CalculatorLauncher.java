@@ -0,0 +1,152 @@
+package calculator.engine;
+
+import java.io.*;
+import java.math.MathContext;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Общий main программ ПР№1–ПР№3: флаги командной строки одинаковы, различается только диалект
+public final class CalculatorLauncher {
+    private CalculatorLauncher() {
+    }
+
+    // Разбор флагов и запуск в выбранном режиме; программа ПР№N вызывает его из main со своим диалектом
+    public static void run(Dialect dialect, String[] args) {
+        // --gamma: ! от дробного числа считается через гамма-функцию (если в диалекте есть факториал)
+        boolean factorial = dialect.supports(Dialect.FACT);
+        boolean gamma = factorial && Arrays.asList(args).contains("--gamma");
+        ExpressionEvaluator model = new ExpressionEvaluator(dialect, ExpressionEvaluator.ExpressionCache.DEFAULT_SIZE,
+            ExpressionEvaluator.OptimizerOptions.ALL, gamma);
+        ConsoleView view = new ConsoleView();
+        // --metrics: метрики стадий вычисления (EvaluatorMetrics) включены и видны через JMX,
+        // при завершении процесса сводка печатается в stderr
+        if (Arrays.asList(args).contains("--metrics")) {
+            ExpressionEvaluator.EvaluatorMetrics.enabled = true;
+            ExpressionEvaluator.EvaluatorMetrics.registerMBeans();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(ExpressionEvaluator.EvaluatorMetrics.dump())));
+        }
+        // --exact: точный режим для интерактивного и пакетного запуска
+        boolean exact = Arrays.asList(args).contains("--exact");
+        // --decimal [N]: десятичный режим, N значащих цифр (по умолчанию 34, как в DECIMAL128)
+        MathContext decimal = null;
+        int decimalAt = Arrays.asList(args).indexOf("--decimal");
+        if (decimalAt >= 0) {
+            boolean digits = decimalAt + 1 < args.length && isDigits(args[decimalAt + 1]);
+            decimal = digits ? new MathContext(Integer.parseInt(args[decimalAt + 1])) : MathContext.DECIMAL128;
+        }
+        // --store файл: программы выражений берутся из хранилища (ProgramStore) вместо разбора текста
+        int storeAt = Arrays.asList(args).indexOf("--store");
+        if (storeAt >= 0 && storeAt + 1 < args.length) {
+            try {
+                model.useProgramStore(ExpressionEvaluator.ProgramStore.open(Path.of(args[storeAt + 1])));
+            } catch (IOException e) {
+                view.showError(e.getMessage());
+            }
+        }
+        // --precompile библиотека файл: компилирует выражения библиотеки (по одному на строку) в хранилище
+        int precompileAt = Arrays.asList(args).indexOf("--precompile");
+        if (precompileAt >= 0 && precompileAt + 2 < args.length) {
+            try {
+                List<String> library = new ArrayList<>();
+                for (String line : Files.readAllLines(Path.of(args[precompileAt + 1]))) {
+                    if (!line.isBlank()) library.add(line);
+                }
+                Path file = Path.of(args[precompileAt + 2]);
+                ExpressionEvaluator.ProgramStore previous = ExpressionEvaluator.ProgramStore.open(file);
+                int stale = previous.stale(library).size();
+                model.useProgramStore(previous);
+                int saved = model.savePrograms(file, library);
+                System.out.println("Записано программ: " + saved + ", устаревших записей удалено: " + stale);
+            } catch (IOException e) {
+                view.showError(e.getMessage());
+            }
+            return;
+        }
+        CalculatorController controller = new CalculatorController(model, view, exact, decimal);
+
+        // --large файл: одно очень большое выражение из файла (миллионы операторов), параллельный режим
+        int largeAt = Arrays.asList(args).indexOf("--large");
+        if (largeAt >= 0 && largeAt + 1 < args.length) {
+            try {
+                view.showResult(model.evaluateParallel(Files.readString(Path.of(args[largeAt + 1])).strip()));
+            } catch (Exception e) {
+                view.showError(e.getMessage());
+            }
+            return;
+        }
+
+        // --stream [файл]: одно выражение любой длины из файла или stdin, читается кусками (потоковый режим)
+        int streamAt = Arrays.asList(args).indexOf("--stream");
+        if (streamAt >= 0) {
+            try {
+                if (streamAt + 1 < args.length) {
+                    try (FileChannel channel = FileChannel.open(Path.of(args[streamAt + 1]), StandardOpenOption.READ)) {
+                        view.showResult(model.evaluateStream(channel));
+                    }
+                } else {
+                    view.showResult(model.evaluateStream(new InputStreamReader(System.in)));
+                }
+            } catch (Exception e) {
+                view.showError(e.getMessage());
+            }
+            return;
+        }
+
+        // --server [порт]: HTTP-режим (CalculatorServer); режим вычислений задают те же флаги, что и без него
+        int serverAt = Arrays.asList(args).indexOf("--server");
+        if (serverAt >= 0) {
+            boolean port = serverAt + 1 < args.length && isDigits(args[serverAt + 1]);
+            try {
+                CalculatorServer server = new CalculatorServer(controller,
+                    port ? Integer.parseInt(args[serverAt + 1]) : CalculatorServer.DEFAULT_PORT,
+                    CalculatorServer.DEFAULT_MAX_IN_FLIGHT, CalculatorServer.DEFAULT_MAX_BODY);
+                server.start();
+                System.out.println("Сервер слушает порт " + server.port());
+            } catch (IOException e) {
+                view.showError(e.getMessage());
+            }
+            return;
+        }
+
+        // --batch [файл] [--threads N] [--mmap] [--exact] [--gamma] [--decimal N]: пакетный режим без подсказок (без файла — из stdin);
+        // --mmap читает файл через отображение в память
+        if (args.length > 0 && args[0].equals("--batch")) {
+            String file = null;
+            boolean mapped = false;
+            int threads = Runtime.getRuntime().availableProcessors();
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--mmap")) mapped = true;
+                else if (args[i].equals("--store")) i++;
+                else if (args[i].equals("--decimal")) i += i + 1 < args.length && isDigits(args[i + 1]) ? 1 : 0;
+                else if (!args[i].equals("--exact") && !(factorial && args[i].equals("--gamma")) && !args[i].equals("--metrics")) file = args[i];
+            }
+            Writer out = new OutputStreamWriter(System.out);
+            try {
+                if (mapped && file != null) {
+                    controller.runMapped(Path.of(file), out, threads);
+                } else {
+                    try (BufferedReader in = file == null
+                            ? new BufferedReader(new InputStreamReader(System.in), 1 << 16)
+                            : Files.newBufferedReader(Path.of(file))) {
+                        controller.runBatch(in, out, threads);
+                    }
+                }
+            } catch (Exception e) {
+                view.showError(e.getMessage());
+            }
+            return;
+        }
+
+        controller.run();
+    }
+
+    private static boolean isDigits(String arg) {
+        return !arg.isEmpty() && arg.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+}
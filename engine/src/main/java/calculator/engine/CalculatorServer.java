@@ -0,0 +1,317 @@
+package calculator.engine;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// HTTP-режим: один прогретый процесс обслуживает все запросы, скомпилированные выражения берутся
+// из общего кэша модели. Конечные точки:
+//   GET  /evaluate?expr=...  — одно выражение из параметра (+ в выражении кодируется как %2B);
+//   POST /evaluate           — одно выражение, тело запроса — его текст;
+//   POST /batch              — JSON-массив строк, ответ — массив; с Content-Type application/x-ndjson —
+//                              по выражению на строку (JSON-строка или просто текст), ответ — NDJSON.
+// Результат выражения — {"result": ...} или {"error": "..."}. Каждый запрос идёт в своём виртуальном
+// потоке (JDK 21+, на старых JDK — обычный пул). Одновременно выполняется не больше maxInFlight
+// запросов, лишние сразу получают 503 с Retry-After; тело длиннее maxBody байт — 413.
+public class CalculatorServer {
+    static final int DEFAULT_PORT = 8080;
+    static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    static final int DEFAULT_MAX_BODY = 1 << 20;
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String NDJSON = "application/x-ndjson; charset=utf-8";
+
+    private final CalculatorController controller;
+    private final Semaphore permits;
+    private final int maxBody;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    CalculatorServer(CalculatorController controller, int port, int maxInFlight, int maxBody) throws IOException {
+        if (maxInFlight <= 0 || maxBody <= 0) {
+            throw new IllegalArgumentException("Лимиты сервера должны быть положительными");
+        }
+        this.controller = controller;
+        this.permits = new Semaphore(maxInFlight);
+        this.maxBody = maxBody;
+        // Без TCP_NODELAY короткие ответы ждут подтверждения по алгоритму Нейгла: десятки мс на запрос.
+        // Свойство читается при первом создании сервера; явно заданное значение не трогаем
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = newPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/evaluate", limited(this::evaluateSingle));
+        server.createContext("/batch", limited(this::evaluateBatch));
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                send(exchange, 200, ExpressionEvaluator.EvaluatorMetrics.dump(), "text/plain; charset=utf-8");
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // Фактический порт (при port = 0 его выбирает система)
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor есть только начиная с JDK 21, поэтому ищется через рефлексию
+    private static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Не больше maxInFlight обработчиков одновременно; остальным — 503 без ожидания в очереди
+    private HttpHandler limited(HttpHandler handler) {
+        return exchange -> {
+            try (exchange) {
+                if (!permits.tryAcquire()) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    send(exchange, 503, error("Сервер перегружен, повторите запрос позже"), JSON);
+                    return;
+                }
+                try {
+                    handler.handle(exchange);
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+    }
+
+    private void evaluateSingle(HttpExchange exchange) throws IOException {
+        String expr;
+        switch (exchange.getRequestMethod()) {
+            case "GET":
+                expr = queryParameter(exchange.getRequestURI().getRawQuery(), "expr");
+                if (expr == null) {
+                    send(exchange, 400, error("Не задан параметр expr"), JSON);
+                    return;
+                }
+                break;
+            case "POST":
+                expr = readBody(exchange);
+                if (expr == null) return;
+                expr = expr.strip();
+                break;
+            default:
+                send(exchange, 405, error("Поддерживаются только GET и POST"), JSON);
+                return;
+        }
+        StringBuilder response = new StringBuilder();
+        boolean ok = appendResult(expr, response);
+        send(exchange, ok ? 200 : 422, response.toString(), JSON);
+    }
+
+    private void evaluateBatch(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, error("Поддерживается только POST"), JSON);
+            return;
+        }
+        String body = readBody(exchange);
+        if (body == null) return;
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        StringBuilder response = new StringBuilder(body.length() * 2);
+        try {
+            if (type != null && type.startsWith("application/x-ndjson")) {
+                for (String line : body.split("\r?\n")) {
+                    line = line.strip();
+                    if (line.isEmpty()) continue;
+                    appendResult(line.startsWith("\"") ? new JsonReader(line).readOnlyString() : line, response);
+                    response.append('\n');
+                }
+                send(exchange, 200, response.toString(), NDJSON);
+            } else {
+                List<String> expressions = new JsonReader(body).readStringArray();
+                response.append('[');
+                for (int i = 0; i < expressions.size(); i++) {
+                    if (i > 0) response.append(',');
+                    appendResult(expressions.get(i), response);
+                }
+                send(exchange, 200, response.append(']').toString(), JSON);
+            }
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()), JSON);
+        }
+    }
+
+    // {"result": ...} или {"error": "..."}; false — выражение с ошибкой
+    private boolean appendResult(String expr, StringBuilder out) {
+        try {
+            String result = controller.evaluateToString(expr);
+            out.append("{\"result\":");
+            // Infinity и NaN в JSON не числа, они передаются строкой
+            if (result.endsWith("Infinity") || result.equals("NaN")) appendJsonString(out, result);
+            else out.append(result);
+            out.append('}');
+            return true;
+        } catch (Exception e) {
+            appendJsonString(out.append("{\"error\":"), controller.errorMessage(e)).append('}');
+            return false;
+        }
+    }
+
+    // Тело запроса не длиннее maxBody байт; при превышении отправляет 413 и возвращает null
+    private String readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        byte[] body = length != null && Long.parseLong(length.strip()) > maxBody
+            ? null : exchange.getRequestBody().readNBytes(maxBody + 1);
+        if (body == null || body.length > maxBody) {
+            send(exchange, 413, error("Тело запроса больше " + maxBody + " байт"), JSON);
+            return null;
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static String queryParameter(String query, String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq >= 0 && pair.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static void send(HttpExchange exchange, int status, String body, String type) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static String error(String message) {
+        return appendJsonString(new StringBuilder("{\"error\":"), message).append('}').toString();
+    }
+
+    private static StringBuilder appendJsonString(StringBuilder out, String text) {
+        if (text == null) return out.append("null");
+        out.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+            }
+        }
+        return out.append('"');
+    }
+
+    // Разбор того небольшого подмножества JSON, что нужно серверу: строка и массив строк
+    private static final class JsonReader {
+        private final String text;
+        private int pos;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        List<String> readStringArray() {
+            List<String> values = new ArrayList<>();
+            expect('[');
+            if (peek() == ']') {
+                pos++;
+            } else {
+                do {
+                    values.add(readString());
+                } while (next(',', ']') == ',');
+            }
+            expectEnd();
+            return values;
+        }
+
+        String readOnlyString() {
+            String value = readString();
+            expectEnd();
+            return value;
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (pos >= text.length()) throw malformed();
+                char c = text.charAt(pos++);
+                if (c == '"') return value.toString();
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) throw malformed();
+                char e = text.charAt(pos++);
+                switch (e) {
+                    case '"': case '\\': case '/': value.append(e); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) throw malformed();
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw malformed();
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        throw malformed();
+                }
+            }
+        }
+
+        private char peek() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+            if (pos >= text.length()) throw malformed();
+            return text.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) throw malformed();
+            pos++;
+        }
+
+        private char next(char a, char b) {
+            char c = peek();
+            if (c != a && c != b) throw malformed();
+            pos++;
+            return c;
+        }
+
+        private void expectEnd() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+            if (pos < text.length()) throw malformed();
+        }
+
+        private IllegalArgumentException malformed() {
+            return new IllegalArgumentException("Ожидается JSON-массив строк (ошибка в позиции " + pos + ")");
+        }
+    }
+}
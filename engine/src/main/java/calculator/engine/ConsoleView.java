@@ -0,0 +1,25 @@
+package calculator.engine;
+
+import java.util.Scanner;
+
+// Консольный ввод и вывод интерактивного режима
+public class ConsoleView {
+    private final Scanner scanner = new Scanner(System.in);
+
+    public String getInputExpression() {
+        System.out.print("Введите математическое выражение: ");
+        return scanner.nextLine();
+    }
+
+    public void showResult(double result) {
+        System.out.println("Результат: " + result);
+    }
+
+    public void showResult(Number result) {
+        System.out.println("Результат: " + result);
+    }
+
+    public void showError(String message) {
+        System.err.println("Ошибка: " + message);
+    }
+}
@@ -0,0 +1,194 @@
+package calculator.engine;
+
+import calculator.engine.ExpressionEvaluator.Tokens;
+import calculator.engine.ExpressionEvaluator.UserFunction;
+import calculator.engine.Operation.Implementation;
+import calculator.engine.Operation.Standard;
+
+import java.util.Arrays;
+
+// Синтаксис калькулятора: таблица операций, разбор текста в токены и сообщения об ошибках.
+// Всё остальное (перевод в ОПН, оптимизатор, вычисление во всех режимах, кэши, хранилище программ,
+// метрики) общее и лежит в ExpressionEvaluator. Коды команд тоже общие: диалект объявляет строки
+// для тех операций, которые у него есть, а NUM, VAR, SQRT, STORE и LOAD движок объявляет сам.
+public abstract class Dialect {
+    // Коды токенов и команд скомпилированной программы
+    public static final byte NUM = 0;
+    public static final byte ADD = 1;
+    public static final byte SUB = 2;
+    public static final byte MUL = 3;
+    public static final byte DIV = 4;
+    public static final byte IDIV = 5;
+    public static final byte POW = 6;
+    public static final byte POW_STAR = 7;
+    public static final byte FACT = 8;
+    public static final byte LOG = 9;
+    public static final byte EXP = 10;
+    public static final byte LPAREN = 11;
+    public static final byte RPAREN = 12;
+    public static final byte VAR = 13;  // значение переменной из слота operands[pc]
+    // Команды, которые появляются только после оптимизатора
+    public static final byte SQRT = 14;  // x^0.5
+    public static final byte STORE = 15;  // копирует вершину стека во временный слот operands[pc]
+    public static final byte LOAD = 16;  // кладёт на стек временный слот operands[pc]
+    // Запись из цифр и точек, которая не число (например, "1.2.3"); только в потоке токенов,
+    // текст — в Tokens.badTokens, перевод в ОПН на нём останавливается
+    public static final byte BAD = 17;
+    // CALL + i — функция пользователя с номером i (см. registerFunction), коды до 127 отданы под них
+    public static final byte CALL = 18;
+
+    // Роль операции при разборе
+    public static final int OPERAND = 0;   // кладёт значение на стек
+    public static final int OPERATOR = 1;  // инфиксный или постфиксный, место определяют приоритет и ассоциативность
+    public static final int POSTFIX = 2;   // постфиксный, относится к тому, что прямо перед ним: в ОПН идёт сразу
+    public static final int FUNCTION = 3;  // имя перед скобкой с аргументом
+    public static final int SYNTAX = 4;    // только в потоке токенов, в программу не попадает
+    public static final int INTERNAL = 5;  // появляется только после оптимизатора
+
+    // Строки, которые движок объявляет сам: их порождают только разбор чисел и имён и оптимизатор
+    private static final Operation[] ENGINE_OPERATIONS = {
+        new Operation(NUM, "", 0, 0, false, OPERAND, null),
+        new Operation(VAR, "", 0, 0, false, OPERAND, null),
+        new Operation(SQRT, "sqrt", 1, 0, false, INTERNAL, Standard.SQRT),
+        new Operation(STORE, "", 1, 0, false, INTERNAL, null),
+        new Operation(LOAD, "", 0, 0, false, OPERAND, null),
+    };
+
+    // Таблицы индексируются кодом команды; коды от CALL — функции пользователя с одним аргументом.
+    // У кодов без строки роль SYNTAX: в программу они не попадают.
+    final Operation[] operations = new Operation[CALL];
+    final Implementation[] implementations = new Implementation[CALL];
+    final String[] symbols = new String[CALL];
+    final int[] precedence = new int[128];
+    final int[] arity = new int[128];
+    final int[] kind = new int[128];
+    final boolean[] rightAssociative = new boolean[128];
+    // Отпечаток таблицы для хранилища программ (см. ProgramStore): программы другого диалекта не читаются
+    final int signature;
+
+    // operations — строки диалекта в любом порядке, по одной на код
+    protected Dialect(Operation... operations) {
+        Arrays.fill(symbols, "");
+        Arrays.fill(kind, SYNTAX);
+        Arrays.fill(arity, CALL, arity.length, 1);
+        Arrays.fill(kind, CALL, kind.length, FUNCTION);
+        for (Operation operation : ENGINE_OPERATIONS) install(operation);
+        for (Operation operation : operations) {
+            if (operation.code() < 0 || operation.code() >= CALL) {
+                throw new IllegalArgumentException("Код операции " + operation.symbol() + " вне таблицы: " + operation.code());
+            }
+            if (this.operations[operation.code()] != null) {
+                throw new IllegalArgumentException("Код " + operation.code() + " уже занят: " + operation.symbol());
+            }
+            check(operation);
+            install(operation);
+        }
+
+        StringBuilder description = new StringBuilder();
+        for (Operation operation : this.operations) {
+            if (operation == null) continue;
+            Implementation implementation = operation.implementation();
+            description.append(operation.code()).append(' ').append(operation.symbol()).append(' ')
+                .append(operation.arity()).append(' ').append(operation.precedence()).append(' ')
+                .append(operation.rightAssociative()).append(' ').append(operation.kind()).append(' ')
+                .append(implementation == null ? "" : implementation instanceof Enum<?> standard
+                    ? standard.name() : implementation.getClass().getSimpleName())
+                .append('\n');
+        }
+        this.signature = description.toString().hashCode();
+    }
+
+    // Строка должна подходить движку: скобки и BAD — синтаксис, у вычисляемых операций есть реализация,
+    // а коды, которые interpret выполняет сам (ExpressionEvaluator.INLINED), объявлены с той же реализацией,
+    // что и ветка в interpret — иначе холодные пути и горячий считали бы по-разному
+    private static void check(Operation operation) {
+        byte code = operation.code();
+        boolean syntax = code == LPAREN || code == RPAREN || code == BAD;
+        if (syntax != (operation.kind() == SYNTAX)) {
+            throw new IllegalArgumentException("Операция " + operation.symbol() + ": роль SYNTAX только у скобок и BAD");
+        }
+        if (syntax) return;
+        if (operation.kind() == OPERAND || operation.kind() == INTERNAL) {
+            throw new IllegalArgumentException("Операция " + operation.symbol() + ": код " + code + " объявляет движок");
+        }
+        int expected = operation.kind() == OPERATOR ? operation.arity() : 1;
+        if (operation.arity() != expected || expected < 1 || expected > 2) {
+            throw new IllegalArgumentException("Операция " + operation.symbol() + ": неверное число аргументов " + operation.arity());
+        }
+        if (operation.implementation() == null) {
+            throw new IllegalArgumentException("Операция " + operation.symbol() + " без реализации");
+        }
+        Implementation inlined = ExpressionEvaluator.INLINED[code];
+        if (inlined != null && operation.implementation() != inlined) {
+            throw new IllegalArgumentException("Операция " + operation.symbol() + " с кодом " + code
+                + " выполняется интерпретатором напрямую, её реализация должна быть " + inlined);
+        }
+    }
+
+    private void install(Operation operation) {
+        int code = operation.code();
+        operations[code] = operation;
+        implementations[code] = operation.implementation();
+        symbols[code] = operation.symbol();
+        precedence[code] = operation.precedence();
+        arity[code] = operation.arity();
+        kind[code] = operation.kind();
+        rightAssociative[code] = operation.rightAssociative();
+    }
+
+    // Есть ли в диалекте операция с кодом op
+    public final boolean supports(byte op) {
+        return op >= 0 && op < CALL && operations[op] != null;
+    }
+
+    // Строка операции с кодом op или null, если её нет в диалекте
+    public final Operation operation(byte op) {
+        return supports(op) ? operations[op] : null;
+    }
+
+    protected final String symbol(byte op) {
+        return symbols[op];
+    }
+
+    protected final int kind(byte op) {
+        return kind[op];
+    }
+
+    // Разбор текста в токены и проверка правил ввода в одном проходе (см. ExpressionEvaluator.tokenize):
+    // первое нарушение правил — tokens.violate, ошибка, на которой разбор останавливается, — tokens.fail.
+    // functions — зарегистрированные функции пользователя, имя functions[i] разбирается в CALL + i.
+    protected abstract Tokens scan(CharSequence expr, UserFunction[] functions);
+
+    // Сообщение о нехватке аргументов у команды op; для функций пользователя op >= CALL
+    protected abstract String underflowMessage(byte op, UserFunction[] functions);
+
+    // Сообщение о непарной скобке при переводе в ОПН
+    protected String bracketMessage() {
+        return "Несбалансированные скобки";
+    }
+
+    // Пояснение перед нарушением правил ввода в интерактивном и пакетном режимах
+    protected abstract String invalidMessage();
+
+    // Интерактивный режим читает выражения до exit (true) или одно выражение (false)
+    protected boolean repeatsInput() {
+        return true;
+    }
+
+    protected static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Символы, которые не совпадают с "." в регулярных выражениях прежней проверки
+    protected static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    protected static boolean startsWith(CharSequence expr, String prefix, int at) {
+        if (at + prefix.length() > expr.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (expr.charAt(at + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+}
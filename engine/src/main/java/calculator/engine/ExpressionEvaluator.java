@@ -0,0 +1,3457 @@
+package calculator.engine;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+import java.util.zip.CRC32C;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import calculator.engine.Operation.Implementation;
+import calculator.engine.Operation.Standard;
+
+import static calculator.engine.Dialect.*;
+
+// Вычислитель выражений, общий для всех диалектов: разбор (его правила задаёт Dialect), перевод в ОПН,
+// оптимизатор и все режимы вычисления, кэши, хранилище программ и метрики
+public class ExpressionEvaluator {
+    // Команды, которые interpret, evalBlock и BytecodeCompiler выполняют сами, без таблицы реализаций.
+    // Dialect проверяет, что строка с таким кодом объявлена именно с этой реализацией, поэтому ветки
+    // этих switch и таблица диалекта не могут разойтись; остальные команды идут через таблицу.
+    static final Implementation[] INLINED = new Implementation[CALL];
+    static {
+        INLINED[ADD] = Standard.ADD;
+        INLINED[SUB] = Standard.SUB;
+        INLINED[MUL] = Standard.MUL;
+        INLINED[DIV] = Standard.DIV;
+        INLINED[IDIV] = Standard.IDIV;
+        INLINED[POW] = Standard.POW;
+        INLINED[POW_STAR] = Standard.POW;
+        INLINED[SQRT] = Standard.SQRT;
+        INLINED[EXP] = Standard.EXP;
+    }
+
+    private final Dialect dialect;
+
+    // Правила ввода проверяются в том же проходе, что и разбор (см. tokenize)
+    public boolean validateExpression(CharSequence expr) {
+        return checkExpression(expr) == null;
+    }
+
+    // Первое нарушение правил ввода с позицией символа или null, если выражение допустимо
+    public String checkExpression(CharSequence expr) {
+        if (!EvaluatorMetrics.enabled) return tokenize(expr).violation;
+        long start = System.nanoTime();
+        Tokens tokens = tokenize(expr);
+        EvaluatorMetrics.VALIDATE.record(start, tokens.violation == null ? null : tokens.violationKind);
+        return tokens.violation;
+    }
+
+    // Выражение не прошло проверку правил ввода; в сообщении — позиция нарушения
+    public static final class InvalidExpressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        InvalidExpressionException(String message) {
+            super(message);
+        }
+    }
+
+    // Ошибка известного вида; вид задаётся там, где ошибка обнаружена, и по нему считаются
+    // отказы в метриках (EvaluatorMetrics.classify). Остальные ошибки — обычный Exception.
+    public static final class EvaluationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final EvaluatorMetrics.ErrorKind kind;
+
+        public EvaluationException(EvaluatorMetrics.ErrorKind kind, String message) {
+            super(message);
+            this.kind = kind;
+        }
+    }
+
+    // Вычислимое выражение от значений переменных по слотам
+    public interface ExpressionFunction {
+        double eval(double[] vars) throws Exception;
+    }
+
+    // Значение выражения и частные производные: partials[i] — по переменной из слота i
+    public record Gradient(double value, double[] partials) {}
+
+    // Функция пользователя с одним аргументом (см. registerFunction); derivative нужна только gradient.
+    // Вызывается командой CALL + i, как операция диалекта, через ту же таблицу реализаций.
+    public record UserFunction(String name, DoubleUnaryOperator function, DoubleUnaryOperator derivative)
+            implements Implementation {
+        @Override
+        public double apply(double a, double b) {
+            return function.applyAsDouble(a);
+        }
+
+        @Override
+        public double derivative(int argument, double adjoint, double a, double b, double value) throws Exception {
+            if (derivative == null) throw new Exception("Для функции " + name + " не задана производная");
+            return adjoint * derivative.applyAsDouble(a);
+        }
+    }
+
+    // Реализации команд для программ одного вычислителя: строки диалекта (! — с гамма-функцией, если она
+    // включена) и функции пользователя под кодами CALL + i. Функции только добавляются, поэтому таблица
+    // с большим числом функций годится и для программ, собранных раньше.
+    static final class OperationTable {
+        final Dialect dialect;
+        final UserFunction[] functions;
+        final Implementation[] handlers;
+
+        OperationTable(Dialect dialect, boolean gammaFactorial) {
+            this.dialect = dialect;
+            this.functions = NO_FUNCTIONS;
+            this.handlers = dialect.implementations.clone();
+            if (gammaFactorial) handlers[FACT] = new GammaFactorial((Operation.Factorial) handlers[FACT]);
+        }
+
+        private OperationTable(Dialect dialect, UserFunction[] functions, Implementation[] handlers) {
+            this.dialect = dialect;
+            this.functions = functions;
+            this.handlers = handlers;
+        }
+
+        OperationTable with(UserFunction function) {
+            UserFunction[] next = Arrays.copyOf(functions, functions.length + 1);
+            next[functions.length] = function;
+            Implementation[] nextHandlers = Arrays.copyOf(handlers, CALL + next.length);
+            nextHandlers[CALL + functions.length] = function;
+            return new OperationTable(dialect, next, nextHandlers);
+        }
+    }
+
+    // ! с гамма-функцией: дробные аргументы через Γ(x + 1) (lanczosFactorial), целые, NaN и ошибки —
+    // как у факториала диалекта. Производная у обоих одна, x! ψ(x + 1).
+    private static final class GammaFactorial implements Implementation {
+        private final Operation.Factorial integer;
+
+        GammaFactorial(Operation.Factorial integer) {
+            this.integer = integer;
+        }
+
+        @Override
+        public double apply(double a, double b) throws Exception {
+            if (a == Math.floor(a) || Double.isNaN(a)) return integer.apply(a, b);
+            return lanczosFactorial(a);
+        }
+
+        @Override
+        public double derivative(int argument, double adjoint, double a, double b, double value) throws Exception {
+            return integer.derivative(argument, adjoint, a, b, value);
+        }
+
+        @Override
+        public void exact(ExactStack stack, int i, int arity) throws Exception {
+            stack.factorial(i, this);
+        }
+
+        @Override
+        public BigDecimal decimal(DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+            return math.factorial(a, true, integer.domainError);
+        }
+    }
+
+    // Программы не короче этого кэшируются в ResultCache даже без дорогих команд
+    private static final int COSTLY_LENGTH = 64;
+
+    // Дешёвые команды: операнды и арифметика без степеней. Всё остальное (степени, корень,
+    // факториал, log, exp и прочие операции диалекта) дорого, и результат стоит кэшировать.
+    private static boolean isCheap(byte op) {
+        return op == NUM || op == VAR || op == LOAD || op == STORE
+            || op == ADD || op == SUB || op == MUL || op == DIV || op == IDIV;
+    }
+
+    // Скомпилированное выражение: разбор выполняется один раз, дальше только вычисление.
+    // Неизменяемо, поэтому один экземпляр можно вычислять из нескольких потоков.
+    public static final class CompiledExpression {
+        private final byte[] code;        // команды в порядке ОПН
+        private final int[] operands;     // для NUM — индекс в literals, для VAR — номер слота
+        private final double[] literals;
+        private final String[] variables;
+        // Реализации команд: строки диалекта и функции пользователя (команда CALL + i — функция i)
+        private final OperationTable table;
+        private final int maxStackDepth;
+        private final int tempCount;      // временные слоты лежат в стеке сразу за maxStackDepth
+        // Нехватка операндов не зависит от значений, поэтому ищется один раз здесь:
+        // первые checkedLength команд выполняются без проверок стека, после них бросается stackError
+        private final int checkedLength;
+        private final String stackError;
+        // Есть дорогие команды (степени, корень, факториал, log, exp) или программа длинная:
+        // результат имеет смысл кэшировать (см. ResultCache)
+        private final boolean costly;
+        // Есть вызовы функций пользователя: от них чистота не требуется, поэтому результат не кэшируется
+        private final boolean calls;
+        private volatile ExpressionFunction bytecode;
+        // Нарушение правил ввода в тексте, из которого собрана программа (null — текст допустим)
+        private final String violation;
+        // Точные значения литералов, которые double хранит с округлением (null — таких нет)
+        private final BigDecimal[] exactLiterals;
+        // Литералы десятичного режима, собираются при первом вычислении в нём
+        private volatile BigDecimal[] decimalLiterals;
+
+        // Все поля задаются здесь: после конструктора программа не меняется
+        private CompiledExpression(byte[] code, int[] operands, double[] literals, BigDecimal[] exactLiterals,
+                                   String[] variables, OperationTable table, int tempCount, String violation) {
+            this.code = code;
+            this.operands = operands;
+            this.literals = literals;
+            this.exactLiterals = exactLiterals;
+            this.variables = variables;
+            this.table = table;
+            this.tempCount = tempCount;
+            this.violation = violation;
+
+            int depth = 0, maxDepth = 0, pc = 0;
+            String error = null;
+            for (; pc < code.length; pc++) {
+                int arity = table.dialect.arity[code[pc]];
+                if (depth < arity) {
+                    error = table.dialect.underflowMessage(code[pc], table.functions);
+                    break;
+                }
+                depth += 1 - arity;
+                maxDepth = Math.max(maxDepth, depth);
+            }
+            if (error == null && depth != 1) error = "Ошибка вычисления";
+            this.maxStackDepth = maxDepth;
+            this.checkedLength = pc;
+            this.stackError = error;
+
+            boolean costly = code.length >= COSTLY_LENGTH, calls = false;
+            for (byte op : code) {
+                costly |= op < CALL && !isCheap(op);
+                calls |= op >= CALL;
+            }
+            this.costly = costly;
+            this.calls = calls;
+        }
+
+        boolean callsFunctions() {
+            return calls;
+        }
+
+        // Размер буфера для evaluate(vars, stack): стек плюс временные слоты
+        public int getFrameSize() {
+            return maxStackDepth + tempCount;
+        }
+
+        // Имена переменных; индекс в списке — номер слота
+        public List<String> getVariables() {
+            return List.of(variables);
+        }
+
+        public int slotOf(String name) {
+            for (int i = 0; i < variables.length; i++) {
+                if (variables[i].equals(name)) return i;
+            }
+            return -1;
+        }
+
+        public double evaluate() throws Exception {
+            return evaluate(NO_VARIABLES);
+        }
+
+        // vars[i] — значение переменной из слота i.
+        // Стек берётся из буфера текущего потока, так что вычисление ничего не выделяет
+        public double evaluate(double[] vars) throws Exception {
+            checkBound(vars.length);
+            return evalRPN(this, scratch(getFrameSize()), vars);
+        }
+
+        // Точный режим (см. ExactStack): Long, BigInteger или Double. Точность литералов и промежуточных
+        // значений гарантирована для программ без свёртки констант — их строит evaluateExact(String).
+        public Number evaluateExact() throws Exception {
+            return evaluateExact(NO_VARIABLES);
+        }
+
+        public Number evaluateExact(double[] vars) throws Exception {
+            checkBound(vars.length);
+            return evalExact(this, ExactStack.local(getFrameSize()), vars);
+        }
+
+        // Десятичный режим (см. DecimalMath): литералы из текста берутся точно, операции округляются
+        // до mathContext. Как и в точном режиме, программу лучше брать без свёртки констант.
+        public BigDecimal evaluateDecimal(MathContext mathContext) throws Exception {
+            return evaluateDecimal(NO_DECIMALS, mathContext);
+        }
+
+        // vars[i] — значение переменной из слота i
+        public BigDecimal evaluateDecimal(BigDecimal[] vars, MathContext mathContext) throws Exception {
+            checkBound(vars.length);
+            return evalDecimal(this, DecimalMath.of(mathContext), vars);
+        }
+
+        // Градиент в точке vars: один прямой проход и один обратный (см. evalGradient)
+        // вместо двух вычислений evaluate на каждую переменную при конечных разностях
+        public Gradient gradient(double[] vars) throws Exception {
+            checkBound(vars.length);
+            return evalGradient(this, vars);
+        }
+
+        private BigDecimal[] decimalLiterals() throws Exception {
+            BigDecimal[] decimals = decimalLiterals;
+            if (decimals == null) {
+                decimals = new BigDecimal[literals.length];
+                for (int i = 0; i < literals.length; i++) {
+                    BigDecimal exact = exactLiterals == null ? null : exactLiterals[i];
+                    decimals[i] = exact != null ? exact : toDecimal(literals[i]);
+                }
+                decimalLiterals = decimals;
+            }
+            return decimals;
+        }
+
+        // Вариант со своим буфером: stack.length должен быть не меньше getFrameSize()
+        public double evaluate(double[] vars, double[] stack) throws Exception {
+            checkBound(vars.length);
+            return evalRPN(this, stack, vars);
+        }
+
+        // То же выражение в виде сгенерированного байткода; класс создаётся один раз.
+        // Для некорректной программы или слишком большой для class-файла остаётся интерпретатор.
+        public ExpressionFunction toBytecode() {
+            ExpressionFunction function = bytecode;
+            if (function == null) {
+                function = BytecodeCompiler.generate(this);
+                if (function == null) function = this::evaluate;
+                bytecode = function;
+            }
+            return function;
+        }
+
+        // Пакетное вычисление по столбцам: columns[slot][row], результат строки row — в out[row].
+        // Выражение разобрано один раз, строки идут блоками (см. evalColumns).
+        public void evaluate(double[][] columns, double[] out) throws Exception {
+            checkBound(columns.length);
+            for (int v = 0; v < variables.length; v++) {
+                if (columns[v].length < out.length) {
+                    throw new IllegalArgumentException("Столбец " + variables[v] + " короче числа строк: " + columns[v].length + " < " + out.length);
+                }
+            }
+            evalColumns(this, columns, out);
+        }
+
+        private void checkBound(int bound) throws Exception {
+            if (bound < variables.length) {
+                throw new Exception("Не заданы значения переменных: "
+                    + String.join(", ", Arrays.asList(variables).subList(bound, variables.length)));
+            }
+        }
+    }
+
+    private static final double[] NO_VARIABLES = new double[0];
+    private static final BigDecimal[] NO_DECIMALS = new BigDecimal[0];
+    private static final UserFunction[] NO_FUNCTIONS = new UserFunction[0];
+
+    // Рабочий стек для вычислений; у каждого потока свой
+    private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[32]);
+    static final double LN2 = Math.log(2);
+
+    private static double[] scratch(int depth) {
+        double[] stack = SCRATCH.get();
+        if (stack.length < depth) {
+            stack = new double[Math.max(depth, stack.length * 2)];
+            SCRATCH.set(stack);
+        }
+        return stack;
+    }
+
+    // Ограниченный кэш скомпилированных выражений.
+    // Ключ — текст выражения с нормализованными пробелами.
+    // Попадание не берёт блокировок: поиск в ConcurrentHashMap и отметка об обращении у записи.
+    // Вытеснение — CLOCK (приближение LRU): записи стоят по кругу, стрелка снимает отметки
+    // и вытесняет первую запись без отметки, то есть ту, к которой не обращались за целый оборот.
+    // Добавление и вытеснение идут под блокировкой, но они бывают только после промаха,
+    // рядом с компиляцией выражения, которая намного дороже.
+    public static final class ExpressionCache {
+        public static final int DEFAULT_SIZE = 256;
+
+        private static final class Entry {
+            final String key;
+            final CompiledExpression program;
+            // Обращение с последнего прохода стрелки. Гонки между потоками только сдвигают вытеснение,
+            // поэтому поле не volatile
+            boolean referenced;
+
+            Entry(String key, CompiledExpression program) {
+                this.key = key;
+                this.program = program;
+            }
+        }
+
+        private final int maxSize;
+        private final ConcurrentHashMap<String, Entry> entries;
+        // Круг CLOCK: первые count ячеек заняты, hand — следующая ячейка для проверки; под lock
+        private final Entry[] clock;
+        private int count;
+        private int hand;
+        private final Object lock = new Object();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public ExpressionCache(int maxSize) {
+            if (maxSize <= 0) throw new IllegalArgumentException("Размер кэша должен быть положительным");
+            this.maxSize = maxSize;
+            this.entries = new ConcurrentHashMap<>(Math.min(maxSize, 1 << 16));
+            this.clock = new Entry[maxSize];
+        }
+
+        // Сжимает любые серии пробельных символов в один пробел.
+        // Пробел не выбрасывается совсем: от него зависит разбор унарного минуса и чисел ("1 2" != "12").
+        static String normalize(String expr) {
+            StringBuilder sb = null;
+            int i = 0;
+            while (i < expr.length()) {
+                char c = expr.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    int start = i;
+                    while (i < expr.length() && Character.isWhitespace(expr.charAt(i))) i++;
+                    if (sb == null) {
+                        if (c == ' ' && i - start == 1) continue; // уже нормализовано
+                        sb = new StringBuilder(expr.length()).append(expr, 0, start);
+                    }
+                    sb.append(' ');
+                    continue;
+                }
+                if (sb != null) sb.append(c);
+                i++;
+            }
+            return sb == null ? expr : sb.toString();
+        }
+
+        CompiledExpression get(String key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            // Запись только при первом обращении за оборот: частые попадания не пишут в общую память
+            if (!entry.referenced) entry.referenced = true;
+            hits.increment();
+            return entry.program;
+        }
+
+        // Если другой поток успел скомпилировать то же выражение, возвращается его экземпляр
+        CompiledExpression putIfAbsent(String key, CompiledExpression compiled) {
+            synchronized (lock) {
+                Entry existing = entries.get(key);
+                if (existing != null) return existing.program;
+                Entry entry = new Entry(key, compiled);
+                if (count < maxSize) {
+                    clock[count++] = entry;
+                } else {
+                    while (clock[hand].referenced) {
+                        clock[hand].referenced = false;
+                        hand = (hand + 1) % maxSize;
+                    }
+                    entries.remove(clock[hand].key);
+                    evictions.increment();
+                    clock[hand] = entry;
+                    hand = (hand + 1) % maxSize;
+                }
+                entries.put(key, entry);
+                return compiled;
+            }
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public void clear() {
+            synchronized (lock) {
+                entries.clear();
+                Arrays.fill(clock, 0, count, null);
+                count = 0;
+                hand = 0;
+            }
+        }
+
+        public long getHits() { return hits.sum(); }
+        public long getMisses() { return misses.sum(); }
+        public long getEvictions() { return evictions.sum(); }
+
+        @Override
+        public String toString() {
+            return "ExpressionCache{size=" + size() + "/" + maxSize + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "}";
+        }
+    }
+
+    // Кэш результатов: встроенные операции чистые, так что программа при одних и тех же значениях переменных
+    // всегда даёт одно и то же. Ключ — сама программа (по ссылке) и биты значений переменных. Хэш ключа
+    // выбирает пару ячеек; новая запись ложится в первую, прежняя первая сдвигается во вторую, а вторая
+    // вытесняется, поэтому память ограничена числом ячеек. Блокировок нет: записи неизменяемы, из двух
+    // одновременных записей в пару остаётся одна. Программы с функциями пользователя идут мимо кэша: их
+    // чистота не гарантируется. Кэшируются только программы с дорогими командами (см. CompiledExpression.costly):
+    // простую арифметику посчитать быстрее, чем найти. Если за окно из WINDOW обращений попаданий меньше
+    // MIN_HIT_RATE, следующие BYPASS обращений идут мимо кэша, после чего он пробует снова.
+    public static final class ResultCache {
+        public static final int DEFAULT_SIZE = 1 << 14;
+        private static final int WINDOW = 4096;
+        private static final double MIN_HIT_RATE = 0.3;  // ниже промахи (вычисление плюс запись) съедают выигрыш
+        private static final int BYPASS = 64 * WINDOW;
+
+        private static final class Entry {
+            final CompiledExpression program;
+            final double[] vars;
+            final double result;
+
+            Entry(CompiledExpression program, double[] vars, double result) {
+                this.program = program;
+                this.vars = vars;
+                this.result = result;
+            }
+        }
+
+        private final Entry[] entries;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder bypassed = new LongAdder();
+        // Окно и обход — только эвристика: из-за гонок между потоками счёт приблизительный, и это не страшно
+        private int windowLookups;
+        private int windowHits;
+        private int bypassLeft;
+
+        // capacity округляется вверх до степени двойки
+        public ResultCache(int capacity) {
+            if (capacity < 2 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("Размер кэша результатов должен быть от 2 до 2^30");
+            }
+            this.entries = new Entry[Integer.highestOneBit(capacity - 1) << 1];
+        }
+
+        // Результат program.evaluate(vars): из кэша или вычисленный и сохранённый в нём
+        public double evaluate(CompiledExpression program, double[] vars) throws Exception {
+            if (!program.costly || program.callsFunctions()) return program.evaluate(vars);
+            if (bypassLeft > 0) {
+                bypassLeft--;
+                bypassed.increment();
+                return program.evaluate(vars);
+            }
+            program.checkBound(vars.length);
+            int count = program.variables.length;
+            int index = hash(program, vars, count) & (entries.length - 2);
+            Entry first = entries[index], second = entries[index + 1];
+            Entry entry = matches(first, program, vars, count) ? first
+                : matches(second, program, vars, count) ? second : null;
+            boolean hit = entry != null;
+            if (hit) windowHits++;
+            if (++windowLookups >= WINDOW) {
+                if (windowHits < WINDOW * MIN_HIT_RATE) bypassLeft = BYPASS;
+                windowLookups = 0;
+                windowHits = 0;
+            }
+            if (hit) {
+                hits.increment();
+                return entry.result;
+            }
+            misses.increment();
+            double result = program.evaluate(vars);
+            if (second != null) evictions.increment();
+            entries[index + 1] = first;
+            entries[index] = new Entry(program, Arrays.copyOf(vars, count), result);
+            return result;
+        }
+
+        private static boolean matches(Entry entry, CompiledExpression program, double[] vars, int count) {
+            return entry != null && entry.program == program && Arrays.equals(entry.vars, 0, count, vars, 0, count);
+        }
+
+        // У небольших целых значений различаются только старшие биты, а ячейка берётся по младшим,
+        // поэтому в конце все биты перемешиваются (финализатор MurmurHash3)
+        private static int hash(CompiledExpression program, double[] vars, int count) {
+            long h = System.identityHashCode(program);
+            for (int i = 0; i < count; i++) {
+                h = (h ^ Double.doubleToLongBits(vars[i])) * 0x9E3779B97F4A7C15L;
+            }
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return (int) h;
+        }
+
+        public int capacity() {
+            return entries.length;
+        }
+
+        public void clear() {
+            Arrays.fill(entries, null);
+        }
+
+        public long getHits() { return hits.sum(); }
+        public long getMisses() { return misses.sum(); }
+        public long getEvictions() { return evictions.sum(); }
+        public long getBypassed() { return bypassed.sum(); }
+
+        // Доля попаданий среди обращений, которые дошли до кэша (без обходов)
+        public double getHitRate() {
+            long hit = getHits(), total = hit + getMisses();
+            return total == 0 ? 0 : (double) hit / total;
+        }
+
+        public boolean isBypassing() {
+            return bypassLeft > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "ResultCache{capacity=" + capacity() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ", bypassed=" + getBypassed() + "}";
+        }
+    }
+
+    // Хранилище скомпилированных программ на диске, чтобы новый процесс не разбирал заново всю библиотеку
+    // формул. Файл отображается в память; при открытии проверяются контрольные суммы и строится индекс
+    // "нормализованный текст -> запись", а программа декодируется из отображения при первом обращении.
+    // Формат (big-endian): заголовок — MAGIC, VERSION, подпись таблицы операций диалекта (Dialect.signature),
+    // проходы оптимизатора, которыми собраны программы, число записей; запись — длина тела, тело, CRC32C тела. Тело: текст,
+    // нарушение правил ввода, команды, операнды, литералы, точные литералы, имена переменных, число
+    // временных слотов; целые — в varint. Запись привязана к полному тексту выражения: изменённая формула
+    // свою старую запись не найдёт, а при следующей записи хранилища (savePrograms) та пропадёт.
+    // Программы, собранные с другими OptimizerOptions или для другого диалекта, вычислителю не отдаются
+    // (см. get): они разобраны не так, как он разобрал бы их сам.
+    public static final class ProgramStore {
+        private static final int MAGIC = 0x45585052;  // "EXPR"
+        private static final int VERSION = 3;
+        private static final int HEADER_SIZE = 20;
+
+        private final ByteBuffer data;
+        private final Map<String, Integer> offsets;  // смещение тела записи
+        private final int corrupted;
+        private final OptimizerOptions options;      // null у пустого хранилища
+        private final int signature;                 // подпись диалекта, для которого собраны программы
+
+        private ProgramStore(ByteBuffer data, Map<String, Integer> offsets, int corrupted, OptimizerOptions options,
+                             int signature) {
+            this.data = data;
+            this.offsets = offsets;
+            this.corrupted = corrupted;
+            this.options = options;
+            this.signature = signature;
+        }
+
+        // Несуществующий файл — пустое хранилище, файл чужого формата или версии — IOException.
+        // Записи с неверной контрольной суммой пропускаются, их число — getCorrupted().
+        public static ProgramStore open(Path file) throws IOException {
+            if (!Files.exists(file)) return new ProgramStore(ByteBuffer.allocate(0), Map.of(), 0, null, 0);
+            ByteBuffer data;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) throw new IOException("Хранилище программ больше 2 ГБ: " + file);
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+                throw new IOException("Файл не является хранилищем программ: " + file);
+            }
+            if (data.getInt(4) != VERSION || (data.getInt(12) & ~7) != 0) {
+                throw new IOException("Хранилище программ другой версии: " + file);
+            }
+            int bits = data.getInt(12);
+            OptimizerOptions options = new OptimizerOptions((bits & 1) != 0, (bits & 2) != 0, (bits & 4) != 0);
+            int count = data.getInt(16);
+            Map<String, Integer> offsets = new HashMap<>();
+            int corrupted = 0, position = HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                int length = position + 4 <= data.limit() ? data.getInt(position) : -1;
+                if (length < 0 || length > data.limit() - position - 8) {
+                    corrupted += count - i;  // файл обрезан: дальше записей нет
+                    break;
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(data.slice(position + 4, length));
+                if ((int) crc.getValue() != data.getInt(position + 4 + length)) {
+                    corrupted++;
+                } else {
+                    try {
+                        offsets.put(readString(data.slice(position + 4, length)), position + 4);
+                    } catch (IllegalArgumentException | BufferUnderflowException e) {
+                        corrupted++;
+                    }
+                }
+                position += length + 8;
+            }
+            return new ProgramStore(data, offsets, corrupted, options, data.getInt(8));
+        }
+
+        public int size() {
+            return offsets.size();
+        }
+
+        public int getCorrupted() {
+            return corrupted;
+        }
+
+        // Проходы оптимизатора, которыми собраны программы (null — хранилище пусто)
+        public OptimizerOptions getOptions() {
+            return options;
+        }
+
+        // Записи, текстов которых в библиотеке уже нет: формулу изменили или удалили
+        public List<String> stale(Collection<String> library) {
+            Set<String> current = new HashSet<>();
+            for (String expr : library) current.add(ExpressionCache.normalize(expr));
+            List<String> stale = new ArrayList<>();
+            for (String key : offsets.keySet()) {
+                if (!current.contains(key)) stale.add(key);
+            }
+            return stale;
+        }
+
+        // Программа для нормализованного текста или null, если записи нет или программы собраны
+        // с другими проходами оптимизатора или для другого диалекта; table — таблица операций вычислителя
+        CompiledExpression get(String key, OptimizerOptions options, OperationTable table) {
+            if (!options.equals(this.options) || signature != table.dialect.signature) return null;
+            Integer offset = offsets.get(key);
+            if (offset == null) return null;
+            ByteBuffer in = data.slice(offset, data.getInt(offset - 4));
+            try {
+                readString(in);
+                return decode(in, table);
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                return null;  // контрольная сумма сошлась, но запись не разбирается — значит, её нет
+            }
+        }
+
+        private static CompiledExpression decode(ByteBuffer in, OperationTable table) {
+            String violation = readNullableString(in);
+            byte[] code = new byte[readLength(in, 1)];
+            in.get(code);
+            int[] operands = new int[code.length];
+            for (int pc = 0; pc < code.length; pc++) {
+                int operand = readVarint(in);
+                operands[pc] = (operand >>> 1) ^ -(operand & 1);
+            }
+            double[] literals = new double[readLength(in, 8)];
+            for (int i = 0; i < literals.length; i++) literals[i] = in.getDouble();
+            int exactCount = readLength(in, 1);
+            BigDecimal[] exactLiterals = exactCount == 0 ? null : new BigDecimal[literals.length];
+            for (int i = 0; i < exactCount; i++) {
+                int index = readVarint(in);
+                if (index >= literals.length) throw new IllegalArgumentException();
+                exactLiterals[index] = new BigDecimal(readString(in));
+            }
+            String[] variables = new String[readLength(in, 1)];
+            for (int i = 0; i < variables.length; i++) variables[i] = readString(in);
+            int tempCount = readVarint(in);
+            // Операнды проверяются, чтобы запись, собранная не этим кодом, не упала при вычислении
+            for (int pc = 0; pc < code.length; pc++) {
+                int bound = switch (code[pc]) {
+                    case NUM -> literals.length;
+                    case VAR -> variables.length;
+                    case LOAD, STORE -> tempCount;
+                    default -> Integer.MAX_VALUE;
+                };
+                if (code[pc] < 0 || code[pc] >= CALL || table.dialect.kind[code[pc]] == SYNTAX
+                        || operands[pc] < 0 || operands[pc] >= bound) {
+                    throw new IllegalArgumentException();
+                }
+            }
+            return new CompiledExpression(code, operands, literals, exactLiterals, variables, table, tempCount, violation);
+        }
+
+        // Файл пишется рядом под временным именем и подменяется целиком: процессы, которые уже
+        // отобразили старый файл, продолжают читать прежнее содержимое
+        static void write(Path file, Map<String, CompiledExpression> programs, OptimizerOptions options, Dialect dialect)
+                throws IOException {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(dialect.signature);
+                out.writeInt((options.foldConstants() ? 1 : 0) | (options.reduceStrength() ? 2 : 0)
+                    | (options.eliminateCommonSubexpressions() ? 4 : 0));
+                out.writeInt(programs.size());
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                CRC32C crc = new CRC32C();
+                for (Map.Entry<String, CompiledExpression> entry : programs.entrySet()) {
+                    body.reset();
+                    encode(entry.getKey(), entry.getValue(), body);
+                    byte[] bytes = body.toByteArray();
+                    crc.reset();
+                    crc.update(bytes);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    out.writeInt((int) crc.getValue());
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static void encode(String key, CompiledExpression program, ByteArrayOutputStream out) {
+            writeString(out, key);
+            if (program.violation == null) writeVarint(out, 0);
+            else writeString(out, program.violation, 1);
+            writeVarint(out, program.code.length);
+            out.write(program.code, 0, program.code.length);
+            for (int operand : program.operands) writeVarint(out, (operand << 1) ^ (operand >> 31));
+            writeVarint(out, program.literals.length);
+            for (double literal : program.literals) {
+                long bits = Double.doubleToRawLongBits(literal);
+                for (int shift = 56; shift >= 0; shift -= 8) out.write((int) (bits >>> shift));
+            }
+            BigDecimal[] exact = program.exactLiterals;
+            int exactCount = 0;
+            if (exact != null) {
+                for (int i = 0; i < program.literals.length; i++) if (exact[i] != null) exactCount++;
+            }
+            writeVarint(out, exactCount);
+            for (int i = 0; exactCount > 0 && i < program.literals.length; i++) {
+                if (exact[i] == null) continue;
+                writeVarint(out, i);
+                writeString(out, exact[i].toString());
+            }
+            writeVarint(out, program.variables.length);
+            for (String variable : program.variables) writeString(out, variable);
+            writeVarint(out, program.tempCount);
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String text) {
+            writeString(out, text, 0);
+        }
+
+        // Длина записывается со сдвигом bias: при bias = 1 ноль означает null
+        private static void writeString(ByteArrayOutputStream out, String text, int bias) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length + bias);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private static int readVarint(ByteBuffer in) {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IllegalArgumentException("Слишком длинный varint");
+        }
+
+        // Длина массива или строки: элементов по size байт не больше, чем осталось в записи
+        private static int readLength(ByteBuffer in, int size) {
+            int length = readVarint(in);
+            if (length < 0 || length > in.remaining() / size) throw new IllegalArgumentException();
+            return length;
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] bytes = new byte[readLength(in, 1)];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static String readNullableString(ByteBuffer in) {
+            int length = readVarint(in) - 1;
+            if (length < 0) return null;
+            if (length > in.remaining()) throw new IllegalArgumentException();
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Метрики стадий вычисления: проверка правил ввода (checkExpression, validateExpression), разбор
+    // (tokenize), перевод в ОПЗ (infixToRPN) и вычисление (evalRPN). По стадии — число вызовов, отказы
+    // по видам ошибок и гистограмма задержек; ещё распределения числа токенов выражения и глубины стека
+    // вычисления. Метрики общие для процесса и по умолчанию выключены: на горячем пути тогда остаётся
+    // одно чтение флага enabled. Включаются свойством -Devaluator.metrics=true, флагом --metrics или
+    // атрибутом Enabled через JMX (registerMBeans); текстовая сводка — dump().
+    public static final class EvaluatorMetrics {
+        public enum ErrorKind { DIVISION_BY_ZERO, UNBALANCED_BRACKETS, UNKNOWN_SYMBOL, INVALID_INPUT, OTHER }
+
+        public static volatile boolean enabled = Boolean.getBoolean("evaluator.metrics");
+
+        static final StageMetrics VALIDATE = new StageMetrics("validate");
+        static final StageMetrics TOKENIZE = new StageMetrics("tokenize");
+        static final StageMetrics TO_RPN = new StageMetrics("infixToRPN");
+        static final StageMetrics EVAL = new StageMetrics("evalRPN");
+        private static final StageMetrics[] STAGES = {VALIDATE, TOKENIZE, TO_RPN, EVAL};
+        static final Histogram TOKEN_COUNT = new Histogram();
+        static final Histogram STACK_DEPTH = new Histogram();
+
+        private static boolean registered;
+
+        private EvaluatorMetrics() {
+        }
+
+        // Вид ошибки — из EvaluationException, в том числе обёрнутого (пакетный режим по столбцам
+        // оборачивает ошибку строки); у остальных исключений — otherwise
+        static ErrorKind classify(Throwable error, ErrorKind otherwise) {
+            for (Throwable e = error; e != null; e = e.getCause()) {
+                if (e instanceof EvaluationException evaluation) return evaluation.kind;
+            }
+            return otherwise;
+        }
+
+        public static void reset() {
+            for (StageMetrics stage : STAGES) stage.reset();
+            TOKEN_COUNT.reset();
+            STACK_DEPTH.reset();
+        }
+
+        // Сводка по строке на показатель: "evaluator.<стадия>.<показатель> значения"
+        public static String dump() {
+            StringBuilder out = new StringBuilder();
+            String separator = System.lineSeparator();
+            out.append("evaluator.enabled ").append(enabled).append(separator);
+            for (StageMetrics stage : STAGES) {
+                String prefix = "evaluator." + stage.name;
+                out.append(prefix).append(".calls ").append(stage.getCalls()).append(separator);
+                out.append(prefix).append(".latency_ns ").append(stage.latency).append(separator);
+                out.append(prefix).append(".failures");
+                stage.getFailures().forEach((kind, count) -> out.append(' ').append(kind).append('=').append(count));
+                out.append(separator);
+            }
+            out.append("evaluator.tokens ").append(TOKEN_COUNT).append(separator);
+            out.append("evaluator.stack_depth ").append(STACK_DEPTH).append(separator);
+            return out.toString();
+        }
+
+        // Регистрация в платформенном MBeanServer (jconsole, jcmd): calculator:type=EvaluatorMetrics —
+        // флаг Enabled, dump и reset; по объекту на стадию и на распределение. Повторный вызов ничего не делает.
+        public static synchronized void registerMBeans() {
+            if (registered) return;
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.registerMBean(new Control(), new ObjectName("calculator:type=EvaluatorMetrics"));
+                for (StageMetrics stage : STAGES) {
+                    server.registerMBean(stage, new ObjectName("calculator:type=EvaluatorMetrics,stage=" + stage.name));
+                }
+                server.registerMBean(TOKEN_COUNT, new ObjectName("calculator:type=EvaluatorMetrics,distribution=tokens"));
+                server.registerMBean(STACK_DEPTH, new ObjectName("calculator:type=EvaluatorMetrics,distribution=stackDepth"));
+            } catch (JMException e) {
+                throw new IllegalStateException(e);
+            }
+            registered = true;
+        }
+
+        public interface ControlMXBean {
+            boolean isEnabled();
+            void setEnabled(boolean enabled);
+            String dump();
+            void reset();
+        }
+
+        public interface StageMXBean {
+            long getCalls();
+            Map<String, Long> getFailures();
+            double getMeanNanos();
+            long getP50Nanos();
+            long getP99Nanos();
+            long getMaxNanos();
+        }
+
+        public interface HistogramMXBean {
+            long getCount();
+            double getMean();
+            long getP50();
+            long getP99();
+            long getMax();
+        }
+
+        private static final class Control implements ControlMXBean {
+            @Override public boolean isEnabled() { return enabled; }
+            @Override public void setEnabled(boolean value) { enabled = value; }
+            @Override public String dump() { return EvaluatorMetrics.dump(); }
+            @Override public void reset() { EvaluatorMetrics.reset(); }
+        }
+
+        static final class StageMetrics implements StageMXBean {
+            private static final ErrorKind[] KINDS = ErrorKind.values();
+
+            final String name;
+            private final LongAdder calls = new LongAdder();
+            private final LongAdder[] failures = new LongAdder[KINDS.length];
+            private final Histogram latency = new Histogram();
+
+            StageMetrics(String name) {
+                this.name = name;
+                for (int k = 0; k < failures.length; k++) failures[k] = new LongAdder();
+            }
+
+            // failure — вид ошибки или null, если стадия прошла успешно
+            void record(long startNanos, ErrorKind failure) {
+                calls.increment();
+                if (failure != null) failures[failure.ordinal()].increment();
+                latency.record(System.nanoTime() - startNanos);
+            }
+
+            void reset() {
+                calls.reset();
+                for (LongAdder failure : failures) failure.reset();
+                latency.reset();
+            }
+
+            @Override public long getCalls() { return calls.sum(); }
+            @Override public double getMeanNanos() { return latency.getMean(); }
+            @Override public long getP50Nanos() { return latency.getP50(); }
+            @Override public long getP99Nanos() { return latency.getP99(); }
+            @Override public long getMaxNanos() { return latency.getMax(); }
+
+            @Override
+            public Map<String, Long> getFailures() {
+                Map<String, Long> byKind = new LinkedHashMap<>();
+                for (ErrorKind kind : KINDS) byKind.put(kind.name().toLowerCase(Locale.ROOT), failures[kind.ordinal()].sum());
+                return byKind;
+            }
+        }
+
+        // Гистограмма по степеням двойки: в корзине k значения из [2^(k-1), 2^k), в корзине 0 — нули.
+        // Процентиль — верхняя граница его корзины (но не больше максимума), то есть оценка сверху
+        // с точностью до двух раз; зато запись — два инкремента без блокировок.
+        static final class Histogram implements HistogramMXBean {
+            private final LongAdder[] buckets = new LongAdder[64];
+            private final LongAdder count = new LongAdder();
+            private final LongAdder sum = new LongAdder();
+            private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+            Histogram() {
+                for (int k = 0; k < buckets.length; k++) buckets[k] = new LongAdder();
+            }
+
+            void record(long value) {
+                value = Math.max(value, 0);
+                buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+                count.increment();
+                sum.add(value);
+                max.accumulate(value);
+            }
+
+            void reset() {
+                for (LongAdder bucket : buckets) bucket.reset();
+                count.reset();
+                sum.reset();
+                max.reset();
+            }
+
+            long percentile(double p) {
+                long[] counts = new long[buckets.length];
+                long total = 0;
+                for (int k = 0; k < buckets.length; k++) total += counts[k] = buckets[k].sum();
+                if (total == 0) return 0;
+                long rank = (long) Math.ceil(p * total), seen = 0;
+                int k = 0;
+                while (k < counts.length - 1 && (seen += counts[k]) < rank) k++;
+                return Math.min(k == 0 ? 0 : (1L << k) - 1, max.get());
+            }
+
+            @Override public long getCount() { return count.sum(); }
+            @Override public long getP50() { return percentile(0.5); }
+            @Override public long getP99() { return percentile(0.99); }
+            @Override public long getMax() { return max.get(); }
+
+            @Override
+            public double getMean() {
+                long n = count.sum();
+                return n == 0 ? 0 : (double) sum.sum() / n;
+            }
+
+            @Override
+            public String toString() {
+                return String.format(Locale.ROOT, "count=%d mean=%.1f p50=%d p99=%d max=%d",
+                    getCount(), getMean(), getP50(), getP99(), getMax());
+            }
+        }
+    }
+
+    private final ExpressionCache cache;
+    // Программы точного и десятичного режимов собираются без оптимизатора и хранятся отдельно
+    private final ExpressionCache exactCache;
+    private final OptimizerOptions optimizerOptions;
+    private volatile ProgramStore programStore;
+    private volatile ResultCache resultCache;
+    // Только растёт: номер функции, а значит и код её команды, не меняется после регистрации
+    private volatile OperationTable table;
+
+    public ExpressionEvaluator(Dialect dialect) {
+        this(dialect, ExpressionCache.DEFAULT_SIZE);
+    }
+
+    public ExpressionEvaluator(Dialect dialect, int cacheSize) {
+        this(dialect, cacheSize, OptimizerOptions.ALL);
+    }
+
+    public ExpressionEvaluator(Dialect dialect, int cacheSize, OptimizerOptions optimizerOptions) {
+        this(dialect, cacheSize, optimizerOptions, false);
+    }
+
+    // gammaFactorial: ! от дробного числа даёт Γ(x + 1) (приближение Ланцоша) вместо ошибки;
+    // только для диалекта с факториалом (Operation.Factorial)
+    public ExpressionEvaluator(Dialect dialect, int cacheSize, OptimizerOptions optimizerOptions, boolean gammaFactorial) {
+        if (gammaFactorial && !(dialect.implementations[FACT] instanceof Operation.Factorial)) {
+            throw new IllegalArgumentException("В диалекте нет факториала, гамма-функция неприменима");
+        }
+        this.dialect = dialect;
+        this.cache = new ExpressionCache(cacheSize);
+        this.exactCache = new ExpressionCache(cacheSize);
+        this.optimizerOptions = optimizerOptions;
+        this.table = new OperationTable(dialect, gammaFactorial);
+    }
+
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    public ExpressionCache getCache() {
+        return cache;
+    }
+
+    // Функция одного аргумента под именем name: после регистрации name(x) в выражениях этого вычислителя
+    // вызывает function, а не читает переменную name. Функции получают коды команд CALL, CALL + 1, ...
+    // и вычисляются по таблице, без поиска по имени. derivative нужна для gradient (null — без неё).
+    // Имена после регистрации разбираются иначе, поэтому кэши программ очищаются; регистрировать
+    // функции лучше до вычислений, иначе разобранное в это время выражение может остаться в кэше прежним.
+    public synchronized void registerFunction(String name, DoubleUnaryOperator function, DoubleUnaryOperator derivative) {
+        Objects.requireNonNull(name, "name");
+        Objects.requireNonNull(function, "function");
+        OperationTable current = table;
+        for (UserFunction f : current.functions) {
+            if (f.name().equals(name)) throw new IllegalArgumentException("Функция " + name + " уже объявлена");
+        }
+        // Имя должно разбираться как имя переменной: не число, не встроенная функция и не её префикс вроде log8
+        Tokens tokens = dialect.scan(name, current.functions);
+        if (tokens.error != null || tokens.size != 1 || tokens.ops[0] != VAR || !tokens.variables.get(0).equals(name)) {
+            throw new IllegalArgumentException("Недопустимое имя функции: " + name);
+        }
+        if (CALL + current.functions.length > Byte.MAX_VALUE) {
+            throw new IllegalStateException("Объявлено наибольшее число функций: " + current.functions.length);
+        }
+        table = current.with(new UserFunction(name, function, derivative));
+        cache.clear();
+        exactCache.clear();
+    }
+
+    public void registerFunction(String name, DoubleUnaryOperator function) {
+        registerFunction(name, function, null);
+    }
+
+    public List<UserFunction> getFunctions() {
+        return List.of(table.functions);
+    }
+
+    // Повторные выражения берутся из кэша и не разбираются заново
+    public CompiledExpression compile(String expr) throws Exception {
+        return compile(expr, cache, false);
+    }
+
+    private CompiledExpression compile(String expr, ExpressionCache cache, boolean exact) throws Exception {
+        String key = ExpressionCache.normalize(expr);
+        CompiledExpression compiled = cache.get(key);
+        if (compiled == null) {
+            CompiledExpression stored = exact ? null : loadStored(key);
+            compiled = cache.putIfAbsent(key, stored != null ? stored : build(tokenize(key), exact));
+        }
+        return compiled;
+    }
+
+    // Хранилище программ (см. ProgramStore): при промахе кэша программа сначала ищется в нём и только
+    // потом разбирается из текста. Только для обычного режима: точный и десятичный собирают свои
+    // программы без оптимизатора. null отключает хранилище.
+    public void useProgramStore(ProgramStore store) {
+        this.programStore = store;
+    }
+
+    private CompiledExpression loadStored(String key) {
+        ProgramStore store = programStore;
+        OperationTable current = table;
+        CompiledExpression program = store == null ? null : store.get(key, optimizerOptions, current);
+        if (program == null) return null;
+        // Запись сделана, когда имя ещё было переменной, а теперь это функция: разбирается заново
+        for (UserFunction function : current.functions) {
+            if (program.slotOf(function.name()) >= 0) return null;
+        }
+        return program;
+    }
+
+    // Компилирует выражения библиотеки и записывает их программы в file вместо прежнего содержимого, так что
+    // записи для текстов, которых в библиотеке больше нет, пропадают. Выражения, которые не компилируются,
+    // не записываются: их всё равно придётся разбирать при каждом обращении. Не записываются и вызовы
+    // функций пользователя (см. registerFunction). Возвращает число записей.
+    public int savePrograms(Path file, Collection<String> library) throws IOException {
+        Map<String, CompiledExpression> programs = new LinkedHashMap<>();
+        for (String expr : library) {
+            String key = ExpressionCache.normalize(expr);
+            try {
+                CompiledExpression program = compile(key);
+                if (!program.callsFunctions()) programs.putIfAbsent(key, program);
+            } catch (Exception e) {
+                // пропускается
+            }
+        }
+        ProgramStore.write(file, programs, optimizerOptions, dialect);
+        return programs.size();
+    }
+
+    private CompiledExpression build(Tokens tokens, boolean exact) throws Exception {
+        CompiledExpression program = infixToRPN(tokens);
+        // Свёртка констант идёт в double, поэтому точному режиму оптимизатор не нужен
+        if (!exact) program = Optimizer.optimize(program, optimizerOptions);
+        return program;
+    }
+
+    public double evaluate(String expr) throws Exception {
+        return evaluate(expr, NO_VARIABLES);
+    }
+
+    // Значение при заданных переменных; порядок значений в vars — как в compile(expr).getVariables()
+    public double evaluate(String expr, double[] vars) throws Exception {
+        CompiledExpression program = compile(expr);
+        ResultCache results = resultCache;
+        return results == null ? program.evaluate(vars) : results.evaluate(program, vars);
+    }
+
+    // Кэш результатов (см. ResultCache) для evaluate(String) и evaluate(String, double[]); null отключает его
+    public void useResultCache(ResultCache cache) {
+        this.resultCache = cache;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    // Параллельный режим для очень больших выражений (см. ParallelEvaluation): без кэша и оптимизатора,
+    // ограничения на число операторов, как и в evaluate, нет. Переменные в этом режиме не задаются.
+    public double evaluateParallel(CharSequence expr) throws Exception {
+        return evaluateParallel(expr, ForkJoinPool.commonPool());
+    }
+
+    public double evaluateParallel(CharSequence expr, ForkJoinPool pool) throws Exception {
+        CompiledExpression program = infixToRPN(tokenize(expr));
+        program.checkBound(0);
+        if (program.stackError != null) throw new Exception(program.stackError);
+        return ParallelEvaluation.evaluate(ParallelEvaluation.rebalance(program), NO_VARIABLES, pool);
+    }
+
+    // Потоковый режим (см. StreamingEvaluation): текст любой длины читается из reader кусками, и память
+    // не зависит от длины выражения. Кэша, оптимизатора и переменных здесь нет.
+    public double evaluateStream(Reader reader) throws Exception {
+        return new StreamingEvaluation(this).evaluate(reader);
+    }
+
+    // Байты канала декодируются как UTF-8 по мере чтения
+    public double evaluateStream(ReadableByteChannel channel) throws Exception {
+        return evaluateStream(Channels.newReader(channel, StandardCharsets.UTF_8));
+    }
+
+    // Точный режим: целые без потери точности (см. ExactStack). Результат — Long, BigInteger или Double.
+    public Number evaluateExact(String expr) throws Exception {
+        return compile(expr, exactCache, true).evaluateExact();
+    }
+
+    // Десятичный режим: BigDecimal с точностью mathContext. Программы общие с точным режимом,
+    // так что переход между режимами не требует повторного разбора.
+    public BigDecimal evaluateDecimal(String expr, MathContext mathContext) throws Exception {
+        return compile(expr, exactCache, true).evaluateDecimal(mathContext);
+    }
+
+    // Значение и градиент; порядок значений в vars — как в compile(expr).getVariables()
+    public Gradient gradient(String expr, double[] vars) throws Exception {
+        return compile(expr).gradient(vars);
+    }
+
+    public double evaluateChecked(String expr) throws Exception {
+        return compileChecked(expr, cache, false).evaluate();
+    }
+
+    public Number evaluateExactChecked(String expr) throws Exception {
+        return compileChecked(expr, exactCache, true).evaluateExact();
+    }
+
+    public BigDecimal evaluateDecimalChecked(String expr, MathContext mathContext) throws Exception {
+        return compileChecked(expr, exactCache, true).evaluateDecimal(mathContext);
+    }
+
+    // Проверка правил ввода и компиляция, текст разбирается не больше одного раза. Проверка уже
+    // нормализованного текста берётся из кэша вместе с программой; иначе токены одного прохода
+    // идут и в проверку, и в компиляцию (токены не зависят от того, какие пробелы в тексте).
+    private CompiledExpression compileChecked(String expr, ExpressionCache cache, boolean exact) throws Exception {
+        String key = ExpressionCache.normalize(expr);
+        CompiledExpression compiled = cache.get(key);
+        if (compiled == null && !exact && key == expr) {
+            CompiledExpression stored = loadStored(key);
+            if (stored != null) compiled = cache.putIfAbsent(key, stored);
+        }
+        if (compiled == null || key != expr) {
+            Tokens tokens = tokenize(expr);
+            if (tokens.violation != null) throw new InvalidExpressionException(tokens.violation);
+            if (compiled == null) compiled = cache.putIfAbsent(key, build(tokens, exact));
+        } else if (compiled.violation != null) {
+            throw new InvalidExpressionException(compiled.violation);
+        }
+        return compiled;
+    }
+
+    // Разовая проверка и вычисление без кэша и оптимизатора — для потока строк, которые почти не повторяются
+    public double evaluateDirect(CharSequence expr) throws Exception {
+        Tokens tokens = tokenize(expr);
+        if (tokens.violation != null) throw new InvalidExpressionException(tokens.violation);
+        CompiledExpression program = infixToRPN(tokens);
+        return program.evaluate();
+    }
+
+    public Number evaluateExactDirect(CharSequence expr) throws Exception {
+        Tokens tokens = tokenize(expr);
+        if (tokens.violation != null) throw new InvalidExpressionException(tokens.violation);
+        CompiledExpression program = infixToRPN(tokens);
+        return program.evaluateExact();
+    }
+
+    public BigDecimal evaluateDecimalDirect(CharSequence expr, MathContext mathContext) throws Exception {
+        Tokens tokens = tokenize(expr);
+        if (tokens.violation != null) throw new InvalidExpressionException(tokens.violation);
+        CompiledExpression program = infixToRPN(tokens);
+        return program.evaluateDecimal(mathContext);
+    }
+
+    // Поток токенов: коды в byte[] и параллельный double[] с уже разобранными числами.
+    // Заполняется разбором диалекта (Dialect.scan); диалект с дополнительными правилами ввода
+    // (например, счётчиком операторов) наследует Tokens и держит свои счётчики в наследнике.
+    public static class Tokens {
+        byte[] ops;
+        double[] literals;
+        BigDecimal[] exactLiterals;  // создаётся при первом длинном литерале
+        int size;
+        final List<String> variables = new ArrayList<>();
+        // Функции пользователя на момент разбора: номер в этом массиве — номер в коде CALL + i
+        final UserFunction[] functions;
+        // Тексты токенов BAD, индекс — в literals
+        final List<String> badTokens = new ArrayList<>();
+        // Таблица реализаций, с которой разбирался текст (см. tokenize); с ней собирается программа
+        OperationTable table;
+
+        // Проверка правил ввода в том же проходе: первое нарушение и первая ошибка разбора
+        String violation;
+        EvaluatorMetrics.ErrorKind violationKind;
+        Exception error;
+        private int depth;
+        private int openedAt;  // позиция внешней незакрытой скобки
+
+        public Tokens(int capacity, UserFunction[] functions) {
+            ops = new byte[Math.max(capacity, 4)];
+            literals = new double[ops.length];
+            this.functions = functions;
+        }
+
+        public void add(byte op) {
+            add(op, 0);
+        }
+
+        void add(byte op, double literal) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                literals = Arrays.copyOf(literals, size * 2);
+                if (exactLiterals != null) exactLiterals = Arrays.copyOf(exactLiterals, size * 2);
+            }
+            ops[size] = op;
+            literals[size] = literal;
+            size++;
+        }
+
+        // Точное значение последнего добавленного литерала
+        void setExact(BigDecimal value) {
+            if (exactLiterals == null) exactLiterals = new BigDecimal[ops.length];
+            exactLiterals[size - 1] = value;
+        }
+
+        // Число из expr[start, end) — цифры, точки и минус в начале — разбирается один раз, здесь же.
+        // Одиночный "-" — это бинарный минус. Неразбираемая запись вроде "1.2.3" не добавляется
+        // (false): диалект сам решает, пропустить её или добавить как BAD.
+        public boolean addNumber(CharSequence expr, int start, int end) {
+            int digits = 0, dots = 0;
+            for (int j = start; j < end; j++) {
+                char d = expr.charAt(j);
+                if (d >= '0' && d <= '9') digits++;
+                else if (d == '.') dots++;
+                else if (d != '-' || j != start) return false;
+            }
+            if (digits == 0) {
+                if (end - start != 1 || expr.charAt(start) != '-') return false;
+                add(SUB);
+                return true;
+            }
+            if (dots > 1) return false;
+            add(NUM, parseNumber(expr, start, end));
+            // Записи длиннее 15 цифр double хранит с округлением; точный и десятичный режимы берут их отсюда
+            if (digits > 15) setExact(new BigDecimal(expr.subSequence(start, end).toString()));
+            return true;
+        }
+
+        // Нечисловая запись из цифр и точек; перевод в ОПН остановится на ней с ошибкой
+        public void addBad(String text) {
+            add(BAD, badTokens.size());
+            badTokens.add(text);
+        }
+
+        // Слоты назначаются в порядке первого появления имени
+        void addVariable(String name) {
+            int slot = variables.indexOf(name);
+            if (slot < 0) {
+                slot = variables.size();
+                variables.add(name);
+            }
+            add(VAR, slot);
+        }
+
+        // Имя функции пользователя становится её командой, остальные имена — переменные
+        public void addName(String name) {
+            for (int f = 0; f < functions.length; f++) {
+                if (functions[f].name().equals(name)) {
+                    add((byte) (CALL + f));
+                    return;
+                }
+            }
+            addVariable(name);
+        }
+
+        public void violate(int position, String message) {
+            violate(position, message, EvaluatorMetrics.ErrorKind.INVALID_INPUT);
+        }
+
+        public void violate(int position, String message, EvaluatorMetrics.ErrorKind kind) {
+            if (violation == null) {
+                violation = "Позиция " + (position + 1) + ": " + message;
+                violationKind = kind;
+            }
+        }
+
+        public void fail(Exception e) {
+            if (error == null) error = e;
+        }
+
+        public void open(int position) {
+            if (depth++ == 0) openedAt = position;
+        }
+
+        public void close(int position) {
+            if (--depth < 0) violate(position, "закрывающая скобка без открывающей", EvaluatorMetrics.ErrorKind.UNBALANCED_BRACKETS);
+        }
+
+        // Глубина вложенности скобок в текущей позиции разбора
+        public int depth() {
+            return depth;
+        }
+
+        // В конце разбора: незакрытая скобка — нарушение в позиции внешней из них
+        public void checkClosed() {
+            if (depth > 0) violate(openedAt, "скобка не закрыта", EvaluatorMetrics.ErrorKind.UNBALANCED_BRACKETS);
+        }
+    }
+
+    // Разбор и проверка правил ввода за один проход (правила задаёт диалект, см. Dialect.scan).
+    // Первое нарушение с позицией попадает в tokens.violation, а ошибка разбора откладывается
+    // до infixToRPN, чтобы о нарушении правил всегда сообщалось первым.
+    // tokenize, infixToRPN и evalRPN открыты: бенчмарки в bench/ замеряют их по отдельности.
+    public Tokens tokenize(CharSequence expr) {
+        if (!EvaluatorMetrics.enabled) return scan(expr);
+        long start = System.nanoTime();
+        Tokens tokens = scan(expr);
+        EvaluatorMetrics.ErrorKind failure = null;
+        if (tokens.error != null) {
+            failure = EvaluatorMetrics.classify(tokens.error, EvaluatorMetrics.ErrorKind.OTHER);
+        } else if (tokens.violation != null) {
+            failure = tokens.violationKind;
+        }
+        EvaluatorMetrics.TOKENIZE.record(start, failure);
+        EvaluatorMetrics.TOKEN_COUNT.record(tokens.size);
+        return tokens;
+    }
+
+    private Tokens scan(CharSequence expr) {
+        OperationTable current = table;
+        Tokens tokens = dialect.scan(expr, current.functions);
+        tokens.table = current;
+        return tokens;
+    }
+
+    // Точные степени десяти для разбора чисел
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Разбор числа прямо из текста, без промежуточной строки; результат бит в бит как у Double.parseDouble.
+    // Значащие цифры (без ведущих нулей, не больше 19) собираются в беззнаковый long w, запись равна
+    // w * 10^q. Если w <= 2^53 и |q| <= 22, оба множителя — точные double, и одно деление или умножение
+    // округляется так же, как parseDouble. Иначе работает алгоритм Эйзеля — Лемира (eiselLemire).
+    // При отброшенных цифрах ответ заключён между w * 10^q и (w + 1) * 10^q: если обе границы дают
+    // одно число, это и есть результат. Остальное (редкие неоднозначные случаи) — Double.parseDouble.
+    static double parseNumber(CharSequence expr, int start, int end) {
+        long w = 0;
+        int significant = 0, dropped = 0, scale = 0;
+        boolean fraction = false, truncated = false;
+        for (int j = start; j < end; j++) {
+            char d = expr.charAt(j);
+            if (d == '.') {
+                fraction = true;
+            } else if (d != '-') {
+                if (fraction) scale++;
+                if (significant == 0 && d == '0') continue;
+                if (significant < 19) {
+                    w = w * 10 + (d - '0');
+                    significant++;
+                } else {
+                    dropped++;
+                    if (d != '0') truncated = true;
+                }
+            }
+        }
+        int q = dropped - scale;
+        double value;
+        if (w == 0) {
+            value = 0;
+        } else if (!truncated && Long.compareUnsigned(w, 1L << 53) <= 0 && q >= -22 && q <= 22) {
+            value = q < 0 ? w / POW10[-q] : w * POW10[q];
+        } else {
+            value = eiselLemire(w, q);
+            if (truncated && eiselLemire(w + 1, q) != value) value = Double.NaN;
+            if (Double.isNaN(value)) return Double.parseDouble(expr.subSequence(start, end).toString());
+        }
+        return expr.charAt(start) == '-' ? -value : value;
+    }
+
+    // 128 старших бит 5^q для q из [MIN_POW5, MAX_POW5]: при q >= 0 — усечённые, при q < 0 — 2^b / 5^-q
+    // с запасом вверх, как в таблице fast_float. Записи с q вне диапазона разбирает Double.parseDouble.
+    private static final int MIN_POW5 = -64;
+    private static final int MAX_POW5 = 64;
+    private static final long[] POW5_HIGH = new long[MAX_POW5 - MIN_POW5 + 1];
+    private static final long[] POW5_LOW = new long[POW5_HIGH.length];
+    static {
+        BigInteger lowMask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int q = MIN_POW5; q <= MAX_POW5; q++) {
+            BigInteger power5 = BigInteger.valueOf(5).pow(Math.abs(q));
+            BigInteger c;
+            if (q >= 0) {
+                c = power5.shiftLeft(128 - power5.bitLength());
+            } else {
+                int z = power5.bitLength();
+                c = BigInteger.ONE.shiftLeft(q >= -27 ? z + 127 : 2 * z + 128).divide(power5).add(BigInteger.ONE);
+            }
+            if (c.bitLength() > 128) c = c.shiftRight(c.bitLength() - 128);
+            POW5_HIGH[q - MIN_POW5] = c.shiftRight(64).longValue();
+            POW5_LOW[q - MIN_POW5] = c.and(lowMask).longValue();
+        }
+    }
+
+    // Эйзель — Лемир: ближайший к w * 10^q double (w != 0, без знака) по 128-битному произведению
+    // нормализованного w на 5^q. NaN — случаи, где точности произведения не хватает для гарантии,
+    // а также субнормальные числа и переполнение: их разбирает parseDouble.
+    static double eiselLemire(long w, int q) {
+        if (q < MIN_POW5 || q > MAX_POW5) return Double.NaN;
+        int lz = Long.numberOfLeadingZeros(w);
+        w <<= lz;
+        int index = q - MIN_POW5;
+        long high = unsignedMultiplyHigh(w, POW5_HIGH[index]);
+        long low = w * POW5_HIGH[index];
+        if ((high & 0x1FF) == 0x1FF) {
+            // Младшие биты старшего слова все единицы: перенос из младшей половины степени может их изменить
+            long carry = unsignedMultiplyHigh(w, POW5_LOW[index]);
+            low += carry;
+            if (Long.compareUnsigned(carry, low) > 0) high++;
+            if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + w, low) < 0) return Double.NaN;
+        }
+        int upper = (int) (high >>> 63);
+        long mantissa = high >>> (upper + 9);
+        // floor(q * log2(10)) + 63 — двоичный порядок 10^q; 1023 — смещение порядка double
+        int power2 = (((152170 + 65536) * q) >> 16) + 63 + upper - lz + 1023;
+        if (power2 <= 0) return Double.NaN;
+        // Ровно посередине между соседними double (возможно только при -4 <= q <= 23) — к чётному
+        if (Long.compareUnsigned(low, 1) <= 0 && q >= -4 && q <= 23 && (mantissa & 3) == 1
+                && mantissa << (upper + 9) == high) {
+            mantissa &= ~1L;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= 2L << 52) {
+            mantissa = 1L << 52;
+            power2++;
+        }
+        mantissa &= ~(1L << 52);
+        if (power2 >= 0x7FF) return Double.NaN;
+        return Double.longBitsToDouble(mantissa | (long) power2 << 52);
+    }
+
+    // Старшие 64 бита беззнакового произведения (Math.unsignedMultiplyHigh появился только в JDK 18)
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    public CompiledExpression infixToRPN(Tokens tokens) throws Exception {
+        if (!EvaluatorMetrics.enabled) return toRPN(tokens);
+        long start = System.nanoTime();
+        CompiledExpression program;
+        try {
+            program = toRPN(tokens);
+        } catch (Exception e) {
+            EvaluatorMetrics.TO_RPN.record(start, EvaluatorMetrics.classify(e, EvaluatorMetrics.ErrorKind.OTHER));
+            throw e;
+        }
+        // Ошибка стека откладывается до вычисления, но обнаруживается здесь
+        EvaluatorMetrics.TO_RPN.record(start, program.stackError == null ? null
+            : EvaluatorMetrics.ErrorKind.OTHER);
+        return program;
+    }
+
+    private CompiledExpression toRPN(Tokens tokens) throws Exception {
+        if (tokens.error != null) throw tokens.error;
+        Dialect dialect = tokens.table.dialect;
+        int[] kind = dialect.kind;
+        int[] precedence = dialect.precedence;
+        boolean[] rightAssociative = dialect.rightAssociative;
+        byte[] code = new byte[tokens.size];
+        int[] operands = new int[tokens.size];
+        double[] literals = new double[tokens.size];
+        BigDecimal[] exact = tokens.exactLiterals == null ? null : new BigDecimal[tokens.size];
+        int out = 0, literalCount = 0;
+        byte[] stack = new byte[tokens.size];
+        int top = 0;
+
+        for (int t = 0; t < tokens.size; t++) {
+            byte token = tokens.ops[t];
+            if (token == NUM) {
+                literals[literalCount] = tokens.literals[t];
+                if (exact != null) exact[literalCount] = tokens.exactLiterals[t];
+                operands[out] = literalCount++;
+                code[out++] = NUM;
+            } else if (token == VAR) {
+                operands[out] = (int) tokens.literals[t];
+                code[out++] = VAR;
+            } else if (kind[token] == FUNCTION) {
+                stack[top++] = token;
+            } else if (kind[token] == POSTFIX) {
+                code[out++] = token;
+            } else if (kind[token] == OPERATOR) {
+                while (top > 0 && kind[stack[top - 1]] == OPERATOR) {
+                    byte opTop = stack[top - 1];
+                    if ((!rightAssociative[token] && precedence[token] <= precedence[opTop]) ||
+                        (rightAssociative[token] && precedence[token] < precedence[opTop])) {
+                        code[out++] = stack[--top];
+                    } else {
+                        break;
+                    }
+                }
+                stack[top++] = token;
+            } else if (token == LPAREN) {
+                stack[top++] = token;
+            } else if (token == RPAREN) {
+                while (top > 0 && stack[top - 1] != LPAREN) {
+                    code[out++] = stack[--top];
+                }
+                if (top == 0) {
+                    throw new EvaluationException(EvaluatorMetrics.ErrorKind.UNBALANCED_BRACKETS, dialect.bracketMessage());
+                }
+                top--;
+                if (top > 0 && kind[stack[top - 1]] == FUNCTION) {
+                    code[out++] = stack[--top];
+                }
+            } else if (token == BAD) {
+                throw new EvaluationException(EvaluatorMetrics.ErrorKind.UNKNOWN_SYMBOL,
+                    "Неизвестный токен: " + tokens.badTokens.get((int) tokens.literals[t]));
+            }
+        }
+
+        while (top > 0) {
+            byte op = stack[--top];
+            if (op == LPAREN) {
+                throw new EvaluationException(EvaluatorMetrics.ErrorKind.UNBALANCED_BRACKETS, dialect.bracketMessage());
+            }
+            code[out++] = op;
+        }
+        return new CompiledExpression(Arrays.copyOf(code, out), Arrays.copyOf(operands, out),
+            Arrays.copyOf(literals, literalCount), exact == null ? null : Arrays.copyOf(exact, literalCount),
+            tokens.variables.toArray(new String[0]), tokens.table, 0, tokens.violation);
+    }
+
+    // Операции с проверками; их же вызывает сгенерированный байткод (BytecodeCompiler)
+    static double divide(double a, double b) throws Exception {
+        if (b == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+        return a / b;
+    }
+
+    // Операнды усекаются до целых, поэтому делитель с |b| < 1 и NaN — тоже деление на ноль,
+    // как в точном и десятичном режимах
+    static double intDivide(double a, double b) throws Exception {
+        long divisor = (long) b;
+        if (divisor == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+        return (double)((long)a / divisor);
+    }
+
+    static double log2(double a) {
+        return Math.log(a) / LN2;
+    }
+
+    // Math.pow(a, 0.5) совпадает с Math.sqrt(a) везде, кроме -0.0 и -Infinity
+    static double sqrtPow(double a) {
+        return a == Double.NEGATIVE_INFINITY ? Double.POSITIVE_INFINITY : Math.sqrt(a + 0.0);
+    }
+
+    // Приближение Ланцоша, g = 7: относительная погрешность около 1e-15, у границы переполнения — до 1e-13
+    private static final double LANCZOS_G = 7;
+    private static final double[] LANCZOS = {
+        0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+        771.32342877765313, -176.61502916214059, 12.507343278686905,
+        -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7
+    };
+    private static final double SQRT_2PI = Math.sqrt(2 * Math.PI);
+
+    // Γ(x + 1); при x < -0.5 — через формулу отражения Γ(x + 1)Γ(-x) = -π / sin(πx)
+    public static double lanczosFactorial(double x) {
+        if (x < -0.5) return -Math.PI / (Math.sin(Math.PI * x) * lanczosFactorial(-x - 1));
+        if (x > 172) return Double.POSITIVE_INFINITY;  // больше Double.MAX_VALUE уже при x > 171.62
+        double sum = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++) sum += LANCZOS[i] / (x + i);
+        double t = x + LANCZOS_G + 0.5;
+        // t^(x + 0.5) переполняется раньше самого результата, поэтому степень берётся двумя половинами
+        double half = Math.pow(t, (x + 0.5) / 2);
+        return SQRT_2PI * (half * Math.exp(-t)) * half * sum;
+    }
+
+    // ψ(x) = Γ'(x) / Γ(x): сдвиг ψ(x) = ψ(x + 1) - 1/x до x >= 10, дальше асимптотический ряд
+    // (погрешность около 1e-14); при x < 0.5 — формула отражения ψ(1 - x) - ψ(x) = π ctg(πx)
+    public static double digamma(double x) {
+        if (x < 0.5) return digamma(1 - x) - Math.PI / Math.tan(Math.PI * x);
+        double result = 0;
+        for (; x < 10; x++) result -= 1 / x;
+        double inv = 1 / (x * x);
+        return result + Math.log(x) - 0.5 / x
+            - inv * (1.0 / 12 - inv * (1.0 / 120 - inv * (1.0 / 252 - inv * (1.0 / 240 - inv / 132))));
+    }
+
+    // Вызов реализации из сгенерированного байткода: аргументы уже лежат на стеке JVM перед ней
+    static double invoke(double a, Implementation operation) throws Exception {
+        return operation.apply(a, 0);
+    }
+
+    static double invoke(double a, double b, Implementation operation) throws Exception {
+        return operation.apply(a, b);
+    }
+
+    static void checkVariables(double[] vars, int count) throws Exception {
+        if (vars.length < count) {
+            throw new Exception("Не заданы значения переменных: ожидается " + count + ", передано " + vars.length);
+        }
+    }
+
+    public static double evalRPN(CompiledExpression program, double[] stack, double[] vars) throws Exception {
+        if (!EvaluatorMetrics.enabled) return interpret(program, stack, vars);
+        long start = System.nanoTime();
+        EvaluatorMetrics.STACK_DEPTH.record(program.maxStackDepth);
+        try {
+            double value = interpret(program, stack, vars);
+            EvaluatorMetrics.EVAL.record(start, null);
+            return value;
+        } catch (Exception e) {
+            EvaluatorMetrics.EVAL.record(start, EvaluatorMetrics.classify(e, EvaluatorMetrics.ErrorKind.OTHER));
+            throw e;
+        }
+    }
+
+    // Частые команды (INLINED) выполняются прямо здесь, остальные — через реализации из таблицы программы
+    private static double interpret(CompiledExpression program, double[] stack, double[] vars) throws Exception {
+        byte[] code = program.code;
+        int[] operands = program.operands;
+        double[] literals = program.literals;
+        Implementation[] handlers = program.table.handlers;
+        int[] arity = program.table.dialect.arity;
+        int temps = program.maxStackDepth;
+        int sp = 0;
+        for (int pc = 0; pc < program.checkedLength; pc++) {
+            byte token = code[pc];
+            switch (token) {
+                case NUM -> stack[sp++] = literals[operands[pc]];
+                case VAR -> stack[sp++] = vars[operands[pc]];
+                case LOAD -> stack[sp++] = stack[temps + operands[pc]];
+                case STORE -> stack[temps + operands[pc]] = stack[sp - 1];
+                case SQRT -> stack[sp - 1] = sqrtPow(stack[sp - 1]);
+                case EXP -> stack[sp - 1] = Math.exp(stack[sp - 1]);
+                case ADD, SUB, MUL, DIV, IDIV, POW, POW_STAR -> {
+                    double b = stack[--sp];
+                    double a = stack[sp - 1];
+
+                    switch (token) {
+                        case ADD -> stack[sp - 1] = a + b;
+                        case SUB -> stack[sp - 1] = a - b;
+                        case MUL -> stack[sp - 1] = a * b;
+                        case DIV -> stack[sp - 1] = divide(a, b);
+                        case IDIV -> stack[sp - 1] = intDivide(a, b);
+                        default -> stack[sp - 1] = Math.pow(a, b);
+                    }
+                }
+                default -> {
+                    if (arity[token] == 2) {
+                        double b = stack[--sp];
+                        stack[sp - 1] = handlers[token].apply(stack[sp - 1], b);
+                    } else {
+                        stack[sp - 1] = handlers[token].apply(stack[sp - 1], 0);
+                    }
+                }
+            }
+        }
+        if (program.stackError != null) throw new Exception(program.stackError);
+        return stack[0];
+    }
+
+    // Строк в блоке пакетного вычисления: стек блока (getFrameSize() * BLOCK значений) помещается в L1
+    private static final int BLOCK = 256;
+
+    // Пакетное вычисление блоками строк: каждая команда проходит сразу по всему блоку, и простые циклы
+    // вида a[i] += b[i] JIT векторизует сам (SuperWord), на любом x86-64 или AArch64 без флагов запуска.
+    // Последний неполный блок идёт тем же кодом с меньшим count. Если в блоке операция бросает
+    // исключение (деление на ноль, факториал дробного), блок пересчитывается построчно через evalRPN:
+    // ошибка, номер строки и уже записанные в out результаты те же, что при построчном вычислении.
+    static void evalColumns(CompiledExpression program, double[][] columns, double[] out) throws Exception {
+        double[][] stack = new double[program.getFrameSize()][BLOCK];
+        double[] scalar = new double[program.getFrameSize()];
+        double[] row = new double[program.variables.length];
+        for (int from = 0; from < out.length; from += BLOCK) {
+            int count = Math.min(BLOCK, out.length - from);
+            try {
+                evalBlock(program, stack, columns, from, count);
+                System.arraycopy(stack[0], 0, out, from, count);
+            } catch (Exception blockError) {
+                for (int r = from; r < from + count; r++) {
+                    for (int v = 0; v < row.length; v++) row[v] = columns[v][r];
+                    try {
+                        out[r] = evalRPN(program, scalar, row);
+                    } catch (Exception e) {
+                        throw new Exception("Строка " + r + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    // Одна программа над строками from..from+count-1; стек — массивы по строкам блока
+    private static void evalBlock(CompiledExpression program, double[][] stack, double[][] columns, int from, int count) throws Exception {
+        byte[] code = program.code;
+        int[] operands = program.operands;
+        Implementation[] handlers = program.table.handlers;
+        int[] arity = program.table.dialect.arity;
+        int temps = program.maxStackDepth;
+        int sp = 0;
+        for (int pc = 0; pc < program.checkedLength; pc++) {
+            byte token = code[pc];
+            switch (token) {
+                case NUM -> Arrays.fill(stack[sp++], 0, count, program.literals[operands[pc]]);
+                case VAR -> System.arraycopy(columns[operands[pc]], from, stack[sp++], 0, count);
+                case LOAD -> System.arraycopy(stack[temps + operands[pc]], 0, stack[sp++], 0, count);
+                case STORE -> System.arraycopy(stack[sp - 1], 0, stack[temps + operands[pc]], 0, count);
+                case ADD, SUB, MUL, DIV, IDIV, POW, POW_STAR -> {
+                    double[] b = stack[--sp];
+                    double[] a = stack[sp - 1];
+                    switch (token) {
+                        case ADD -> {
+                            for (int i = 0; i < count; i++) a[i] += b[i];
+                        }
+                        case SUB -> {
+                            for (int i = 0; i < count; i++) a[i] -= b[i];
+                        }
+                        case MUL -> {
+                            for (int i = 0; i < count; i++) a[i] *= b[i];
+                        }
+                        case DIV -> {
+                            checkDivisor(b, count);
+                            for (int i = 0; i < count; i++) a[i] /= b[i];
+                        }
+                        case IDIV -> {
+                            checkIntDivisor(b, count);
+                            for (int i = 0; i < count; i++) a[i] = (double)((long)a[i] / (long)b[i]);
+                        }
+                        default -> {
+                            for (int i = 0; i < count; i++) a[i] = Math.pow(a[i], b[i]);
+                        }
+                    }
+                }
+                default -> {
+                    // sqrt, exp и остальные операции диалекта — поэлементно через реализацию из таблицы
+                    Implementation operation = handlers[token];
+                    if (arity[token] == 2) {
+                        double[] b = stack[--sp];
+                        double[] a = stack[sp - 1];
+                        for (int i = 0; i < count; i++) a[i] = operation.apply(a[i], b[i]);
+                    } else {
+                        double[] a = stack[sp - 1];
+                        for (int i = 0; i < count; i++) a[i] = operation.apply(a[i], 0);
+                    }
+                }
+            }
+        }
+        if (program.stackError != null) throw new Exception(program.stackError);
+    }
+
+    // Проверка делителей отдельным циклом, чтобы само деление осталось циклом без ветвлений
+    private static void checkDivisor(double[] b, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            if (b[i] == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+        }
+    }
+
+    // То же для //: делитель усекается до целого, как в intDivide
+    private static void checkIntDivisor(double[] b, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            if ((long) b[i] == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+        }
+    }
+
+    // Точный режим вычисления программы: то же, что evalRPN, но на ExactStack. Операции — через
+    // Implementation.exact: арифметика точная, log, exp, sqrt и функции пользователя считаются в double.
+    static Number evalExact(CompiledExpression program, ExactStack stack, double[] vars) throws Exception {
+        byte[] code = program.code;
+        int[] operands = program.operands;
+        Implementation[] handlers = program.table.handlers;
+        int[] arity = program.table.dialect.arity;
+        int temps = program.maxStackDepth;
+        int sp = 0;
+        for (int pc = 0; pc < program.checkedLength; pc++) {
+            byte token = code[pc];
+            switch (token) {
+                case NUM -> stack.setLiteral(sp++, program, operands[pc]);
+                case VAR -> stack.setNumber(sp++, vars[operands[pc]]);
+                case LOAD -> stack.copy(temps + operands[pc], sp++);
+                case STORE -> stack.copy(sp - 1, temps + operands[pc]);
+                default -> {
+                    if (arity[token] == 2) sp--;
+                    handlers[token].exact(stack, sp - 1, arity[token]);
+                }
+            }
+        }
+        if (program.stackError != null) throw new Exception(program.stackError);
+        return stack.result(0);
+    }
+
+    // Десятичный режим вычисления программы: то же, что evalRPN, но в BigDecimal (см. DecimalMath).
+    // Операции — через Implementation.decimal; у функций пользователя точность результата — точность double.
+    static BigDecimal evalDecimal(CompiledExpression program, DecimalMath math, BigDecimal[] vars) throws Exception {
+        byte[] code = program.code;
+        int[] operands = program.operands;
+        BigDecimal[] literals = program.decimalLiterals();
+        BigDecimal[] stack = new BigDecimal[program.getFrameSize()];
+        Implementation[] handlers = program.table.handlers;
+        int[] arity = program.table.dialect.arity;
+        int temps = program.maxStackDepth;
+        int sp = 0;
+        try {
+            for (int pc = 0; pc < program.checkedLength; pc++) {
+                byte token = code[pc];
+                switch (token) {
+                    case NUM -> stack[sp++] = literals[operands[pc]];
+                    case VAR -> stack[sp++] = vars[operands[pc]];
+                    case LOAD -> stack[sp++] = stack[temps + operands[pc]];
+                    case STORE -> stack[temps + operands[pc]] = stack[sp - 1];
+                    default -> {
+                        if (arity[token] == 2) {
+                            BigDecimal b = stack[--sp];
+                            stack[sp - 1] = handlers[token].decimal(math, stack[sp - 1], b);
+                        } else {
+                            stack[sp - 1] = handlers[token].decimal(math, stack[sp - 1], null);
+                        }
+                    }
+                }
+            }
+        } catch (ArithmeticException e) {
+            // BigDecimal не может представить порядок результата (масштаб вне int)
+            throw new Exception(DecimalMath.RANGE_ERROR);
+        }
+        if (program.stackError != null) throw new Exception(program.stackError);
+        return stack[0];
+    }
+
+    // Градиент программы обратным режимом автоматического дифференцирования. Прямой проход — как evalRPN,
+    // но значение каждой команды остаётся на ленте values[pc] вместе с номерами команд-аргументов;
+    // обратный проход идёт от результата к началу и разносит сопряжённые значения (adjoints) по
+    // аргументам, у VAR они складываются в производную по переменной. LOAD не создаёт новой вершины,
+    // а ссылается на сохранённую, поэтому общие подвыражения после оптимизатора учитываются верно.
+    // Производные операций, в том числе в точках, где производной нет, задаёт Implementation.derivative
+    // (см. Operation); функция пользователя без производной даёт ошибку.
+    // Команды с нулевым сопряжённым значением пропускаются: 0 * sqrt(x) при x = 0 даёт 0, а не NaN.
+    static Gradient evalGradient(CompiledExpression program, double[] vars) throws Exception {
+        byte[] code = program.code;
+        int[] operands = program.operands;
+        Implementation[] handlers = program.table.handlers;
+        int[] arity = program.table.dialect.arity;
+        int length = program.checkedLength;
+        double[] values = new double[length];
+        int[] left = new int[length];
+        int[] right = new int[length];
+        int[] stack = new int[program.getFrameSize()];  // номера команд, чьи значения лежат на стеке
+        int temps = program.maxStackDepth;
+        int sp = 0;
+        for (int pc = 0; pc < length; pc++) {
+            byte token = code[pc];
+            switch (token) {
+                case NUM -> {
+                    values[pc] = program.literals[operands[pc]];
+                    stack[sp++] = pc;
+                }
+                case VAR -> {
+                    values[pc] = vars[operands[pc]];
+                    stack[sp++] = pc;
+                }
+                case LOAD -> stack[sp++] = stack[temps + operands[pc]];
+                case STORE -> stack[temps + operands[pc]] = stack[sp - 1];
+                default -> {
+                    if (arity[token] == 2) right[pc] = stack[--sp];
+                    left[pc] = stack[sp - 1];
+                    double a = values[left[pc]], b = values[right[pc]];
+                    values[pc] = handlers[token].apply(a, b);
+                    stack[sp - 1] = pc;
+                }
+            }
+        }
+        if (program.stackError != null) throw new Exception(program.stackError);
+
+        double[] adjoints = new double[length];
+        double[] partials = new double[program.variables.length];
+        int result = stack[0];
+        adjoints[result] = 1;
+        for (int pc = result; pc >= 0; pc--) {
+            double adjoint = adjoints[pc];
+            if (adjoint == 0) continue;
+            byte token = code[pc];
+            double a = values[left[pc]], b = values[right[pc]], value = values[pc];
+            switch (token) {
+                case VAR -> partials[operands[pc]] += adjoint;
+                case NUM, LOAD, STORE -> { }
+                default -> {
+                    Implementation operation = handlers[token];
+                    adjoints[left[pc]] += operation.derivative(0, adjoint, a, b, value);
+                    if (arity[token] == 2) adjoints[right[pc]] += operation.derivative(1, adjoint, a, b, value);
+                }
+            }
+        }
+        return new Gradient(values[result], partials);
+    }
+
+    // Литерал из текста длиной до 15 значащих цифр восстанавливается из double точно: округление до
+    // 15 цифр возвращает запись из текста (0.1, а не 0.1000000000000000055...). Значения, которых
+    // в тексте не было (свёрнутые оптимизатором константы), берутся такими, какие они в double.
+    static BigDecimal toDecimal(double value) throws Exception {
+        if (!Double.isFinite(value)) throw new Exception("Значение " + value + " не представимо в десятичном режиме");
+        BigDecimal exact = new BigDecimal(value);
+        BigDecimal shortest = exact.round(new MathContext(15)).stripTrailingZeros();
+        if (shortest.scale() < 0) shortest = shortest.setScale(0);
+        return shortest.doubleValue() == value ? shortest : exact;
+    }
+
+    // Стек точного режима. Целые значения лежат в long и проверяются на переполнение (Math.*Exact),
+    // при переполнении переходят в BigInteger, а в double — только настоящие дроби, log/exp/sqrt
+    // и результаты, которые больше MAX_EXACT_BITS. Вид значения хранится в kinds, значения —
+    // в параллельных массивах, так что целые вычисления не выделяют память. Один экземпляр на поток.
+    public static final class ExactStack {
+        private static final byte INTEGER = 0;
+        private static final byte BIG = 1;
+        private static final byte REAL = 2;
+        // Степени и факториалы больше этого числа бит считаются в double
+        private static final int MAX_EXACT_BITS = 1 << 16;
+        private static final int MAX_EXACT_FACTORIAL = 5000;  // 5000! — около 54 тысяч бит
+        private static final ThreadLocal<ExactStack> LOCAL = ThreadLocal.withInitial(ExactStack::new);
+
+        private byte[] kinds = new byte[16];
+        private long[] longs = new long[16];
+        private BigInteger[] bigs = new BigInteger[16];
+        private double[] reals = new double[16];
+
+        static ExactStack local(int size) {
+            ExactStack stack = LOCAL.get();
+            if (stack.kinds.length < size) {
+                stack.kinds = new byte[size];
+                stack.longs = new long[size];
+                stack.bigs = new BigInteger[size];
+                stack.reals = new double[size];
+            }
+            return stack;
+        }
+
+        void setLong(int i, long value) {
+            kinds[i] = INTEGER;
+            longs[i] = value;
+        }
+
+        void setBig(int i, BigInteger value) {
+            if (value.bitLength() < 64) {
+                setLong(i, value.longValue());
+            } else {
+                kinds[i] = BIG;
+                bigs[i] = value;
+            }
+        }
+
+        void setReal(int i, double value) {
+            kinds[i] = REAL;
+            reals[i] = value;
+        }
+
+        // Целое значение double (литерал, переменная) считается точным целым
+        void setNumber(int i, double value) {
+            if (value != Math.rint(value) || Double.isInfinite(value)) setReal(i, value);
+            else if (Math.abs(value) < 0x1p63) setLong(i, (long) value);
+            else setBig(i, new BigDecimal(value).toBigInteger());
+        }
+
+        // Длинные целые литералы берутся из исходного текста, а не из округлённого double
+        void setLiteral(int i, CompiledExpression program, int index) {
+            BigDecimal exact = program.exactLiterals == null ? null : program.exactLiterals[index];
+            if (exact != null && exact.scale() == 0) setBig(i, exact.unscaledValue());
+            else setNumber(i, program.literals[index]);
+        }
+
+        void copy(int from, int to) {
+            kinds[to] = kinds[from];
+            longs[to] = longs[from];
+            bigs[to] = bigs[from];
+            reals[to] = reals[from];
+        }
+
+        double toDouble(int i) {
+            return switch (kinds[i]) {
+                case INTEGER -> longs[i];
+                case BIG -> bigs[i].doubleValue();
+                default -> reals[i];
+            };
+        }
+
+        private BigInteger toBig(int i) {
+            return kinds[i] == INTEGER ? BigInteger.valueOf(longs[i]) : bigs[i];
+        }
+
+        Number result(int i) {
+            return switch (kinds[i]) {
+                case INTEGER -> longs[i];
+                case BIG -> bigs[i];
+                default -> reals[i];
+            };
+        }
+
+        // Двухместные операции над значениями i и i + 1, результат в i (их вызывает Operation.Standard.exact).
+        // С дробным операндом — в double, два long — быстрым путём с проверкой переполнения,
+        // остальное и переполнение — в BigInteger.
+        void add(int i) {
+            int j = i + 1;
+            if (hasReal(i, j)) {
+                setReal(i, toDouble(i) + toDouble(j));
+                return;
+            }
+            if (bothLong(i, j)) {
+                try {
+                    longs[i] = Math.addExact(longs[i], longs[j]);
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // дальше в BigInteger
+                }
+            }
+            setBig(i, toBig(i).add(toBig(j)));
+        }
+
+        void subtract(int i) {
+            int j = i + 1;
+            if (hasReal(i, j)) {
+                setReal(i, toDouble(i) - toDouble(j));
+                return;
+            }
+            if (bothLong(i, j)) {
+                try {
+                    longs[i] = Math.subtractExact(longs[i], longs[j]);
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // дальше в BigInteger
+                }
+            }
+            setBig(i, toBig(i).subtract(toBig(j)));
+        }
+
+        void multiply(int i) {
+            int j = i + 1;
+            if (hasReal(i, j)) {
+                setReal(i, toDouble(i) * toDouble(j));
+                return;
+            }
+            if (bothLong(i, j)) {
+                try {
+                    longs[i] = Math.multiplyExact(longs[i], longs[j]);
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // дальше в BigInteger
+                }
+            }
+            setBig(i, toBig(i).multiply(toBig(j)));
+        }
+
+        // Делится нацело — целое, иначе ближайшее double к дроби
+        void divide(int i) throws Exception {
+            int j = i + 1;
+            if (hasReal(i, j)) {
+                setReal(i, ExpressionEvaluator.divide(toDouble(i), toDouble(j)));
+                return;
+            }
+            if (bothLong(i, j)) {
+                long a = longs[i], b = longs[j];
+                if (b == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                if (a % b != 0) {
+                    setReal(i, quotient(BigInteger.valueOf(a), BigInteger.valueOf(b)));
+                    return;
+                }
+                if (a != Long.MIN_VALUE || b != -1) {
+                    longs[i] = a / b;
+                    return;
+                }
+            }
+            BigInteger a = toBig(i), b = toBig(j);
+            if (b.signum() == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+            BigInteger[] qr = a.divideAndRemainder(b);
+            if (qr[1].signum() == 0) setBig(i, qr[0]);
+            else setReal(i, quotient(a, b));
+        }
+
+        void intDivide(int i) throws Exception {
+            int j = i + 1;
+            if (hasReal(i, j)) {
+                truncatingDivide(i, j);
+                return;
+            }
+            if (bothLong(i, j)) {
+                long a = longs[i], b = longs[j];
+                if (b == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                if (a != Long.MIN_VALUE || b != -1) {
+                    longs[i] = a / b;
+                    return;
+                }
+            }
+            BigInteger a = toBig(i), b = toBig(j);
+            if (b.signum() == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+            setBig(i, a.divide(b));
+        }
+
+        void power(int i) {
+            int j = i + 1;
+            if (hasReal(i, j)) {
+                setReal(i, Math.pow(toDouble(i), toDouble(j)));
+                return;
+            }
+            if (bothLong(i, j) && longs[j] >= 0) {
+                try {
+                    long result = 1, base = longs[i];
+                    for (long e = longs[j]; e > 0; e >>= 1) {
+                        if ((e & 1) != 0) result = Math.multiplyExact(result, base);
+                        if (e > 1) base = Math.multiplyExact(base, base);
+                    }
+                    longs[i] = result;
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // дальше в BigInteger
+                }
+            }
+            power(i, toBig(i), toBig(j));
+        }
+
+        private boolean hasReal(int i, int j) {
+            return kinds[i] == REAL || kinds[j] == REAL;
+        }
+
+        private boolean bothLong(int i, int j) {
+            return kinds[i] == INTEGER && kinds[j] == INTEGER;
+        }
+
+        // Ближайшее double к несократимой дроби a / b
+        private static double quotient(BigInteger a, BigInteger b) {
+            if (a.bitLength() <= 53 && b.bitLength() <= 53) return a.doubleValue() / b.doubleValue();
+            return new BigDecimal(a).divide(new BigDecimal(b), MathContext.DECIMAL128).doubleValue();
+        }
+
+        private void power(int i, BigInteger base, BigInteger exponent) {
+            if (exponent.signum() < 0) {
+                setReal(i, Math.pow(base.doubleValue(), exponent.doubleValue()));
+            } else if (base.abs().compareTo(BigInteger.ONE) <= 0) {
+                // 0, 1 и -1 в любой степени
+                if (exponent.signum() == 0) setLong(i, 1);
+                else setLong(i, base.signum() < 0 && !exponent.testBit(0) ? 1 : base.longValue());
+            } else if (exponent.bitLength() > 31 || (long) base.bitLength() * exponent.longValue() > MAX_EXACT_BITS) {
+                setReal(i, Math.pow(base.doubleValue(), exponent.doubleValue()));
+            } else {
+                setBig(i, base.pow(exponent.intValue()));
+            }
+        }
+
+        // // с дробным операндом отбрасывает дробную часть, как (long) в intDivide, но без потери точности
+        private void truncatingDivide(int i, int j) throws Exception {
+            if ((kinds[i] == REAL && !Double.isFinite(reals[i])) || (kinds[j] == REAL && !Double.isFinite(reals[j]))) {
+                setReal(i, ExpressionEvaluator.intDivide(toDouble(i), toDouble(j)));
+                return;
+            }
+            BigInteger a = truncate(i), b = truncate(j);
+            if (b.signum() == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+            setBig(i, a.divide(b));
+        }
+
+        private BigInteger truncate(int i) {
+            return kinds[i] == REAL ? new BigDecimal(reals[i]).toBigInteger() : toBig(i);
+        }
+
+        // n! точно; отрицательные и дробные аргументы дают то же, что и в обычном режиме
+        // (ошибку или Γ(value + 1)): их считает реализация factorial из таблицы программы
+        void factorial(int i, Implementation factorial) throws Exception {
+            double value = toDouble(i);
+            if (value < 0 || value != Math.rint(value)) {
+                setReal(i, factorial.apply(value, 0));
+                return;
+            }
+            if (kinds[i] == REAL) {
+                if (Double.isInfinite(value)) return;
+                setNumber(i, value);  // целое double, например log(8), считается точно
+            }
+            if (kinds[i] == BIG || longs[i] > MAX_EXACT_FACTORIAL) {
+                setReal(i, Double.POSITIVE_INFINITY);
+                return;
+            }
+            int n = (int) longs[i];
+            if (n <= MAX_LONG_FACTORIAL) setLong(i, LONG_FACTORIALS[n]);
+            else setBig(i, exactFactorial(n));
+        }
+    }
+
+    // n! берётся из таблицы: в double конечны значения до 170!, дальше — бесконечность.
+    // Таблица заполняется тем же последовательным умножением, поэтому значения прежние.
+    private static final int MAX_DOUBLE_FACTORIAL = 170;
+    private static final double[] FACTORIALS = new double[MAX_DOUBLE_FACTORIAL + 1];
+    // Для точного режима: до 20! факториал помещается в long
+    private static final int MAX_LONG_FACTORIAL = 20;
+    private static final long[] LONG_FACTORIALS = new long[MAX_LONG_FACTORIAL + 1];
+    static {
+        FACTORIALS[0] = 1;
+        for (int i = 1; i <= MAX_DOUBLE_FACTORIAL; i++) FACTORIALS[i] = FACTORIALS[i - 1] * i;
+        LONG_FACTORIALS[0] = 1;
+        for (int i = 1; i <= MAX_LONG_FACTORIAL; i++) LONG_FACTORIALS[i] = LONG_FACTORIALS[i - 1] * i;
+    }
+
+    static double factorial(int n) {
+        return n <= MAX_DOUBLE_FACTORIAL ? FACTORIALS[n] : Double.POSITIVE_INFINITY;
+    }
+
+    // Точный n! для точного режима. Произведение 21..n делится пополам (binary splitting), чтобы
+    // BigInteger перемножал числа близкой длины (там работают Карацуба и Тоом–Кук), а не n раз
+    // длинное число на короткое. Значения до MEMO_FACTORIAL запоминаются; гонка при заполнении
+    // безопасна — BigInteger неизменяем.
+    private static final int MEMO_FACTORIAL = 1000;
+    private static final BigInteger[] BIG_FACTORIALS = new BigInteger[MEMO_FACTORIAL + 1];
+
+    static BigInteger exactFactorial(int n) {
+        if (n <= MAX_LONG_FACTORIAL) return BigInteger.valueOf(LONG_FACTORIALS[n]);
+        BigInteger result = n <= MEMO_FACTORIAL ? BIG_FACTORIALS[n] : null;
+        if (result == null) {
+            result = product(MAX_LONG_FACTORIAL + 1, n).multiply(BigInteger.valueOf(LONG_FACTORIALS[MAX_LONG_FACTORIAL]));
+            if (n <= MEMO_FACTORIAL) BIG_FACTORIALS[n] = result;
+        }
+        return result;
+    }
+
+    // from * (from + 1) * ... * to; короткие отрезки перемножаются в long, пока нет переполнения
+    private static BigInteger product(int from, int to) {
+        if (to - from < 16) {
+            BigInteger result = BigInteger.ONE;
+            long chunk = 1;
+            for (int k = from; k <= to; k++) {
+                if (chunk > Long.MAX_VALUE / k) {
+                    result = result.multiply(BigInteger.valueOf(chunk));
+                    chunk = 1;
+                }
+                chunk *= k;
+            }
+            return result.multiply(BigInteger.valueOf(chunk));
+        }
+        int middle = (from + to) >>> 1;
+        return product(from, middle).multiply(product(middle + 1, to));
+    }
+
+    // Ядра десятичного режима для одной MathContext. +, -, * и / округляются до mathContext, как в самом
+    // BigDecimal; степени, exp и log считаются с запасом GUARD_DIGITS цифр и округляются в конце.
+    // Ряды для exp и ln идут в двоичной фиксированной точке: BigInteger с дробной частью из bits разрядов,
+    // где деление BigDecimal заменяется сдвигом. Точность и задаёт выбор между скоростью и числом верных
+    // цифр: от неё зависят bits и число членов рядов. ln 2 для приведения аргументов считается один раз
+    // на экземпляр; экземпляры кэшируются по MathContext.
+    public static final class DecimalMath {
+        static final String RANGE_ERROR = "Порядок результата вне диапазона десятичного режима";
+        private static final int GUARD_DIGITS = 10;
+        private static final int HALVINGS = 8;  // exp: аргумент делится на 2^8, сумма ряда 8 раз возводится в квадрат
+        private static final int MAX_CACHED = 64;
+        private static final Map<MathContext, DecimalMath> INSTANCES = new ConcurrentHashMap<>();
+        private static final BigDecimal TWO = BigDecimal.valueOf(2);
+        private static final BigDecimal HALF = new BigDecimal("0.5");
+        private static final BigDecimal LN2_APPROX = new BigDecimal(LN2);  // только для выбора k в exp
+        private static final BigDecimal MAX_BINARY_EXPONENT = BigDecimal.valueOf(Integer.MAX_VALUE);
+        private static final BigDecimal MAX_FACTORIAL = BigDecimal.valueOf(1_000_000);
+        private static final double LOG2_10 = Math.log(10) / LN2;
+        private static final double LOG10_2 = LN2 / Math.log(10);
+
+        final MathContext mathContext;
+        private final MathContext work;
+        private final MathContext workDown;  // для //: частное отбрасывает цифры, а не округляет
+        // Фиксированная точка: рабочая точность плюс 32 разряда на приведение аргумента exp (|k| < 2^31)
+        private final int bits;
+        private final BigInteger ln2;  // ln 2 · 2^bits
+
+        private DecimalMath(MathContext mathContext) {
+            this.mathContext = mathContext;
+            this.work = new MathContext(mathContext.getPrecision() + GUARD_DIGITS, RoundingMode.HALF_EVEN);
+            this.workDown = new MathContext(work.getPrecision(), RoundingMode.DOWN);
+            this.bits = (int) Math.ceil(work.getPrecision() * LOG2_10) + 32;
+            this.ln2 = atanh(BigInteger.ONE.shiftLeft(bits).divide(BigInteger.valueOf(3)), bits).shiftLeft(1);  // 2 atanh(1/3)
+        }
+
+        static DecimalMath of(MathContext mathContext) {
+            if (mathContext.getPrecision() == 0) {
+                throw new IllegalArgumentException("Для десятичного режима нужна конечная точность MathContext");
+            }
+            DecimalMath math = INSTANCES.get(mathContext);
+            if (math == null) {
+                if (INSTANCES.size() >= MAX_CACHED) INSTANCES.clear();
+                math = INSTANCES.computeIfAbsent(mathContext, DecimalMath::new);
+            }
+            return math;
+        }
+
+        BigDecimal divide(BigDecimal a, BigDecimal b) throws Exception {
+            if (b.signum() == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+            return a.divide(b, mathContext);
+        }
+
+        // Как (long) в intDivide и в точном режиме: операнды и частное усекаются к нулю. Частное считается
+        // с рабочей точностью, чтобы огромные операнды не раскрывались в цифры целиком.
+        BigDecimal intDivide(BigDecimal a, BigDecimal b) throws Exception {
+            BigDecimal divisor = truncate(b);
+            if (divisor.signum() == 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+            return truncate(truncate(a).divide(divisor, workDown)).round(mathContext);
+        }
+
+        private static BigDecimal truncate(BigDecimal x) {
+            if (x.precision() <= x.scale()) return BigDecimal.ZERO;  // |x| < 1
+            return x.scale() > 0 ? x.setScale(0, RoundingMode.DOWN) : x;
+        }
+
+        // Целый показатель — возведение в квадрат, иначе a^b = exp(b·ln a)
+        BigDecimal pow(BigDecimal a, BigDecimal b) throws Exception {
+            boolean integer = isInteger(b);
+            if (integer && b.precision() - b.scale() <= 18) {
+                long n = b.longValueExact();
+                if (a.signum() == 0 && n < 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                return powInteger(a, n).round(mathContext);
+            }
+            if (a.signum() == 0) {
+                if (b.signum() < 0) throw new EvaluationException(EvaluatorMetrics.ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                return BigDecimal.ZERO;
+            }
+            if (a.signum() < 0 && !integer) throw new Exception("Дробная степень отрицательного числа");
+            BigDecimal result = expWork(b.multiply(lnWork(a.abs()), work));
+            if (a.signum() < 0 && isOdd(b)) result = result.negate();
+            return result.round(mathContext);
+        }
+
+        // x^n; погрешность растёт с числом умножений, поэтому к рабочей точности добавляется длина n
+        private BigDecimal powInteger(BigDecimal x, long n) {
+            long m = Math.abs(n);
+            MathContext mc = new MathContext(work.getPrecision() + Long.toString(m).length(), RoundingMode.HALF_EVEN);
+            BigDecimal result = BigDecimal.ONE, square = x;
+            while (m > 0) {
+                if ((m & 1) != 0) result = result.multiply(square, mc);
+                m >>>= 1;
+                if (m > 0) square = square.multiply(square, mc);
+            }
+            return n < 0 ? BigDecimal.ONE.divide(result, mc) : result;
+        }
+
+        BigDecimal exp(BigDecimal x) throws Exception {
+            return expWork(x).round(mathContext);
+        }
+
+        // e^x = 2^k · e^r, где x = k·ln 2 + r и |r| <= ln 2 / 2; e^r — ряд Тейлора от r / 2^HALVINGS
+        private BigDecimal expWork(BigDecimal x) throws Exception {
+            if (x.signum() == 0) return BigDecimal.ONE;
+            BigDecimal quotient = x.divide(LN2_APPROX, MathContext.DECIMAL64);
+            if (quotient.abs().compareTo(MAX_BINARY_EXPONENT) > 0) {
+                if (x.signum() < 0) return BigDecimal.ZERO;
+                throw new Exception(RANGE_ERROR);
+            }
+            long k = quotient.abs().compareTo(HALF) < 0 ? 0 : quotient.setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+            BigInteger r = toFixed(x, bits).subtract(ln2.multiply(BigInteger.valueOf(k))).shiftRight(HALVINGS);
+            BigInteger one = BigInteger.ONE.shiftLeft(bits);
+            BigInteger sum = one, term = one;
+            for (int n = 1; term.signum() != 0; n++) {
+                term = term.multiply(r).shiftRight(bits).divide(BigInteger.valueOf(n));
+                sum = sum.add(term);
+            }
+            for (int i = 0; i < HALVINGS; i++) sum = sum.multiply(sum).shiftRight(bits);
+            BigDecimal result = fromFixed(sum, bits);
+            return k == 0 ? result.round(work) : result.multiply(powInteger(TWO, k), work);
+        }
+
+        // x = 2^k · y, y близко к 1: log2 x = k + ln y / ln 2, и для степеней двойки результат целый.
+        // Только для x > 0: ошибку для остальных выбирает реализация log (Operation.Logarithm).
+        BigDecimal log2(BigDecimal x) {
+            long k = binaryExponent(x);
+            int precise = reducedBits(x, k);
+            BigInteger quotient = lnReduced(x, k, precise).shiftLeft(bits).divide(ln2);
+            if (quotient.signum() == 0) return BigDecimal.valueOf(k);  // степень двойки
+            return BigDecimal.valueOf(k).add(fromFixed(quotient, precise), work).round(mathContext);
+        }
+
+        private BigDecimal lnWork(BigDecimal x) {
+            long k = binaryExponent(x);
+            int precise = reducedBits(x, k);
+            BigInteger lnY = lnReduced(x, k, precise);
+            return fromFixed(ln2.multiply(BigInteger.valueOf(k)), bits).add(fromFixed(lnY, precise), work);
+        }
+
+        // При x около 1 ln x мал, и чтобы сохранить относительную точность, дробных разрядов нужно больше
+        private int reducedBits(BigDecimal x, long k) {
+            if (k != 0) return bits;
+            BigDecimal distance = x.subtract(BigDecimal.ONE).abs();
+            return distance.signum() == 0 ? bits : bits + (int) Math.max(0, -binaryExponent(distance));
+        }
+
+        // ln(x / 2^k) · 2^precise = 2 atanh(z), z = (y - 1) / (y + 1); при y около 1 |z| < 0.2, и ряд сходится быстро
+        private BigInteger lnReduced(BigDecimal x, long k, int precise) {
+            BigDecimal y = k == 0 ? x : x.multiply(powInteger(TWO, -k), work);
+            BigInteger fixed = toFixed(y, precise), one = BigInteger.ONE.shiftLeft(precise);
+            BigInteger z = fixed.subtract(one).shiftLeft(precise).divide(fixed.add(one));
+            return atanh(z, precise).shiftLeft(1);
+        }
+
+        // atanh z = z + z^3/3 + z^5/5 + ... в фиксированной точке с precise дробными разрядами
+        private static BigInteger atanh(BigInteger z, int precise) {
+            BigInteger z2 = z.multiply(z).shiftRight(precise);
+            BigInteger sum = z, power = z;
+            for (long n = 3; ; n += 2) {
+                power = power.multiply(z2).shiftRight(precise);
+                BigInteger term = power.divide(BigInteger.valueOf(n));
+                if (term.signum() == 0) return sum;
+                sum = sum.add(term);
+            }
+        }
+
+        private static BigInteger toFixed(BigDecimal x, int precise) {
+            if (x.precision() - x.scale() < -precise * LOG10_2 - 1) return BigInteger.ZERO;  // меньше 2^-precise
+            BigInteger shifted = x.unscaledValue().shiftLeft(precise);
+            int scale = x.scale();
+            return scale <= 0 ? shifted.multiply(BigInteger.TEN.pow(-scale)) : shifted.divide(BigInteger.TEN.pow(scale));
+        }
+
+        // Цифры value / 2^precise с рабочей точностью: число десятичных знаков — по двоичному порядку значения
+        private BigDecimal fromFixed(BigInteger value, int precise) {
+            if (value.signum() == 0) return BigDecimal.ZERO;
+            int digits = work.getPrecision() + 1 - (int) Math.floor((value.bitLength() - precise) * LOG10_2);
+            BigInteger scaled = digits >= 0
+                ? value.multiply(BigInteger.TEN.pow(digits)) : value.divide(BigInteger.TEN.pow(-digits));
+            return new BigDecimal(scaled.shiftRight(precise), digits);
+        }
+
+        // Ближайшее целое к log2 x — по старшим битам мантиссы и десятичному порядку
+        private static long binaryExponent(BigDecimal x) {
+            BigInteger unscaled = x.unscaledValue();
+            int shift = Math.max(unscaled.bitLength() - 63, 0);
+            return Math.round(Math.log(unscaled.shiftRight(shift).doubleValue()) / LN2 + shift - x.scale() * LOG2_10);
+        }
+
+        BigDecimal sqrt(BigDecimal x) throws Exception {
+            if (x.signum() < 0) throw new Exception("Корень из отрицательного числа");
+            return x.sqrt(mathContext);
+        }
+
+        // n! до MEMO_FACTORIAL берётся точным из exactFactorial, дальше — произведение с рабочей точностью.
+        // Дробный аргумент с гамма-функцией считается в double (lanczosFactorial) и точнее не станет.
+        // domainError — сообщение факториала диалекта для отрицательных и (без гамма-функции) дробных x.
+        BigDecimal factorial(BigDecimal x, boolean gamma, String domainError) throws Exception {
+            if (!isInteger(x)) {
+                if (!gamma) throw new Exception(domainError);
+                double value = lanczosFactorial(x.doubleValue());
+                if (Double.isInfinite(value)) throw new Exception(RANGE_ERROR);
+                return new BigDecimal(value).round(mathContext);
+            }
+            if (x.signum() < 0) throw new Exception(domainError);
+            if (x.compareTo(MAX_FACTORIAL) > 0) throw new Exception("Слишком большой аргумент факториала: " + x);
+            int n = x.intValueExact();
+            if (n <= MEMO_FACTORIAL) return new BigDecimal(exactFactorial(n), mathContext);
+            BigDecimal result = new BigDecimal(exactFactorial(MEMO_FACTORIAL), work);
+            long chunk = 1;
+            for (int k = MEMO_FACTORIAL + 1; k <= n; k++) {
+                if (chunk > Long.MAX_VALUE / k) {
+                    result = result.multiply(BigDecimal.valueOf(chunk), work);
+                    chunk = 1;
+                }
+                chunk *= k;
+            }
+            return result.multiply(BigDecimal.valueOf(chunk), work).round(mathContext);
+        }
+
+        private static boolean isInteger(BigDecimal x) {
+            return x.signum() == 0 || x.scale() <= 0 || x.stripTrailingZeros().scale() <= 0;
+        }
+
+        // Для целого x; кратные десяти записываются с отрицательным порядком и чётны
+        private static boolean isOdd(BigDecimal x) {
+            BigDecimal stripped = x.stripTrailingZeros();
+            return stripped.scale() == 0 && stripped.unscaledValue().testBit(0);
+        }
+    }
+
+    // Включение проходов оптимизатора по отдельности (например, чтобы замерить каждый)
+    public record OptimizerOptions(boolean foldConstants, boolean reduceStrength, boolean eliminateCommonSubexpressions) {
+        public static final OptimizerOptions ALL = new OptimizerOptions(true, true, true);
+        public static final OptimizerOptions NONE = new OptimizerOptions(false, false, false);
+    }
+
+    // Оптимизатор между infixToRPN и вычислением. Программа в ОПН собирается в дерево снизу вверх,
+    // по ходу сборки сворачиваются константы, x^2 заменяется на x*x, x^0.5 — на корень,
+    // а одинаковые поддеревья склеиваются в один узел (DAG). Общий узел вычисляется один раз:
+    // STORE кладёт его значение во временный слот, последующие вхождения читают его через LOAD.
+    // Проходы не меняют результат: операции, которые бросили бы ошибку, не сворачиваются.
+    static final class Optimizer {
+        private static final class Node {
+            final byte op;
+            final int operand;   // слот для VAR
+            final double value;  // значение для NUM
+            final Node left, right;
+            int refs;            // сколько раз узел используется родителями
+            int temp = -1;       // временный слот, назначается при первом вычислении общего узла
+
+            Node(byte op, int operand, double value, Node left, Node right) {
+                this.op = op;
+                this.operand = operand;
+                this.value = value;
+                this.left = left;
+                this.right = right;
+            }
+
+            boolean isLeaf() {
+                return op == NUM || op == VAR;
+            }
+        }
+
+        // Потомки сравниваются по ссылке: они уже склеены
+        private record Key(byte op, int operand, long bits, Node left, Node right) {}
+
+        private final OptimizerOptions options;
+        // Реализации строк диалекта: константы сворачиваются без гамма-функции и без функций пользователя
+        private final Implementation[] implementations;
+        private final Map<Key, Node> nodes = new HashMap<>();
+
+        private Optimizer(OptimizerOptions options, Dialect dialect) {
+            this.options = options;
+            this.implementations = dialect.implementations;
+        }
+
+        static CompiledExpression optimize(CompiledExpression program, OptimizerOptions options) {
+            if (program.stackError != null || options.equals(OptimizerOptions.NONE)) return program;
+            int[] arity = program.table.dialect.arity;
+            Optimizer optimizer = new Optimizer(options, program.table.dialect);
+            Node[] stack = new Node[program.maxStackDepth];
+            int sp = 0;
+            for (int pc = 0; pc < program.code.length; pc++) {
+                byte op = program.code[pc];
+                if (op == NUM) {
+                    stack[sp++] = optimizer.constant(program.literals[program.operands[pc]]);
+                } else if (op == VAR) {
+                    stack[sp++] = optimizer.node(VAR, program.operands[pc], 0, null, null);
+                } else if (arity[op] == 1) {
+                    stack[sp - 1] = optimizer.unary(op, stack[sp - 1]);
+                } else {
+                    Node b = stack[--sp];
+                    stack[sp - 1] = optimizer.binary(op, stack[sp - 1], b);
+                }
+            }
+            return optimizer.emit(stack[0], program);
+        }
+
+        private Node constant(double value) {
+            return node(NUM, 0, value, null, null);
+        }
+
+        // Функции пользователя не сворачиваются: чистота от них не требуется
+        private Node unary(byte op, Node a) {
+            if (options.foldConstants() && a.op == NUM && op < CALL) {
+                try {
+                    return constant(implementations[op].apply(a.value, 0));
+                } catch (Exception e) {
+                    // ошибка должна возникнуть при вычислении, не сворачиваем
+                }
+            }
+            return node(op, 0, 0, a, null);
+        }
+
+        private Node binary(byte op, Node a, Node b) {
+            if (op == POW_STAR) op = POW;  // ^ и ** — одна операция
+            if (options.foldConstants() && a.op == NUM && b.op == NUM) {
+                try {
+                    return constant(implementations[op].apply(a.value, b.value));
+                } catch (Exception e) {
+                    // ошибка должна возникнуть при вычислении, не сворачиваем
+                }
+            }
+            if (options.reduceStrength() && op == POW && b.op == NUM) {
+                if (b.value == 2) return node(MUL, 0, 0, a, a);
+                if (b.value == 0.5) return node(SQRT, 0, 0, a, null);
+            }
+            return node(op, 0, 0, a, b);
+        }
+
+        private Node node(byte op, int operand, double value, Node left, Node right) {
+            Key key = null;
+            if (options.eliminateCommonSubexpressions()) {
+                key = new Key(op, operand, Double.doubleToRawLongBits(value), left, right);
+                Node existing = nodes.get(key);
+                if (existing != null) return existing;
+            }
+            Node node = new Node(op, operand, value, left, right);
+            if (left != null) left.refs++;
+            if (right != null) right.refs++;
+            if (key != null) nodes.put(key, node);
+            return node;
+        }
+
+        // Обратно в ОПН обходом в глубину без рекурсии: выражение может быть очень глубоким
+        private CompiledExpression emit(Node root, CompiledExpression source) {
+            int capacity = source.code.length * 2 + 1;  // x^2 -> STORE/LOAD добавляет не больше одной команды на узел
+            byte[] code = new byte[capacity];
+            int[] operands = new int[capacity];
+            double[] literals = new double[capacity];
+            Map<Long, Integer> literalIndex = new HashMap<>();
+            int out = 0, literalCount = 0, temps = 0;
+
+            Node[] work = new Node[16];
+            boolean[] expanded = new boolean[16];
+            int top = 0;
+            work[top++] = root;
+            while (top > 0) {
+                Node node = work[--top];
+                boolean done = expanded[top];
+                if (node.temp >= 0) {
+                    code[out] = LOAD;
+                    operands[out++] = node.temp;
+                } else if (node.op == NUM) {
+                    Integer index = literalIndex.get(Double.doubleToRawLongBits(node.value));
+                    if (index == null) {
+                        index = literalCount;
+                        literals[literalCount++] = node.value;
+                        literalIndex.put(Double.doubleToRawLongBits(node.value), index);
+                    }
+                    code[out] = NUM;
+                    operands[out++] = index;
+                } else if (node.op == VAR) {
+                    code[out] = VAR;
+                    operands[out++] = node.operand;
+                } else if (!done) {
+                    if (top + 3 > work.length) {
+                        work = Arrays.copyOf(work, work.length * 2);
+                        expanded = Arrays.copyOf(expanded, work.length);
+                    }
+                    work[top] = node;
+                    expanded[top++] = true;
+                    if (node.right != null) {
+                        work[top] = node.right;
+                        expanded[top++] = false;
+                    }
+                    work[top] = node.left;
+                    expanded[top++] = false;
+                } else {
+                    code[out++] = node.op;
+                    if (node.refs > 1) {
+                        node.temp = temps++;
+                        code[out] = STORE;
+                        operands[out++] = node.temp;
+                    }
+                }
+            }
+            // Литералы перенумерованы и частично свёрнуты, точные значения к ним уже не относятся
+            return new CompiledExpression(Arrays.copyOf(code, out), Arrays.copyOf(operands, out),
+                Arrays.copyOf(literals, literalCount), null, source.variables, source.table, temps, source.violation);
+        }
+    }
+
+    // Генератор байткода: программа в ОПН превращается в скрытый класс с линейным методом
+    // double eval(double[] vars), который JIT инлайнит и оптимизирует как обычный код.
+    // Частые команды (INLINED) — инструкции JVM или вызовы тех же статических методов, что и в интерпретаторе;
+    // остальные вызывают реализацию из таблицы программы, которую класс получает в конструкторе.
+    static final class BytecodeCompiler {
+        private static final String OWNER = ExpressionEvaluator.class.getName().replace('.', '/');
+        private static final String FUNCTION = ExpressionFunction.class.getName().replace('.', '/');
+        private static final String HANDLERS = "[L" + Implementation.class.getName().replace('.', '/') + ";";
+        private static final int CLASS_VERSION = 61;  // Java 17
+
+        private static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11;
+        private static final int LDC2_W = 0x14, DALOAD = 0x31, AALOAD = 0x32, DLOAD = 0x18, DSTORE = 0x39, DUP2 = 0x5c;
+        private static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b;
+        private static final int GETFIELD = 0xb4, PUTFIELD = 0xb5;
+        private static final int INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, DRETURN = 0xaf, RETURN = 0xb1;
+
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolSize = 1;
+
+        // Возвращает null, если программу нельзя перевести в байткод
+        static ExpressionFunction generate(CompiledExpression program) {
+            // Временные слоты становятся локальными переменными с однобайтовым индексом
+            if (program.stackError != null || 2 + 2 * program.tempCount > 255) return null;
+            try {
+                byte[] classBytes = new BytecodeCompiler().compileClass(program);
+                if (classBytes == null) return null;
+                Class<?> generated = MethodHandles.lookup().defineHiddenClass(classBytes, true).lookupClass();
+                return (ExpressionFunction) generated.getDeclaredConstructor(Implementation[].class)
+                    .newInstance((Object) program.table.handlers);
+            } catch (IOException | ReflectiveOperationException e) {
+                throw new IllegalStateException("Не удалось создать класс для выражения", e);
+            }
+        }
+
+        private byte[] compileClass(CompiledExpression program) throws IOException {
+            String className = OWNER + "$Generated";
+            int[] arity = program.table.dialect.arity;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (program.variables.length > 0) {
+                body.write(ALOAD_1);
+                pushInt(body, program.variables.length);
+                invokeStatic(body, OWNER, "checkVariables", "([DI)V");
+            }
+            for (int pc = 0; pc < program.code.length; pc++) {
+                switch (program.code[pc]) {
+                    case NUM -> {
+                        body.write(LDC2_W);
+                        writeShort(body, doubleConstant(program.literals[program.operands[pc]]));
+                    }
+                    case VAR -> {
+                        body.write(ALOAD_1);
+                        pushInt(body, program.operands[pc]);
+                        body.write(DALOAD);
+                    }
+                    case LOAD -> {
+                        body.write(DLOAD);
+                        body.write(2 + 2 * program.operands[pc]);
+                    }
+                    case STORE -> {
+                        body.write(DUP2);
+                        body.write(DSTORE);
+                        body.write(2 + 2 * program.operands[pc]);
+                    }
+                    case SQRT -> invokeStatic(body, OWNER, "sqrtPow", "(D)D");
+                    case ADD -> body.write(DADD);
+                    case SUB -> body.write(DSUB);
+                    case MUL -> body.write(DMUL);
+                    case DIV -> invokeStatic(body, OWNER, "divide", "(DD)D");
+                    case IDIV -> invokeStatic(body, OWNER, "intDivide", "(DD)D");
+                    case POW, POW_STAR -> invokeStatic(body, "java/lang/Math", "pow", "(DD)D");
+                    case EXP -> invokeStatic(body, "java/lang/Math", "exp", "(D)D");
+                    default -> {
+                        // handlers[op] и вызов через invoke: аргументы уже на стеке, реализация ложится за ними
+                        int op = program.code[pc];
+                        body.write(ALOAD_0);
+                        body.write(GETFIELD);
+                        writeShort(body, fieldRef(className, "handlers", HANDLERS));
+                        pushInt(body, op);
+                        body.write(AALOAD);
+                        invokeStatic(body, OWNER, "invoke", arity[op] == 2 ? "(DD" + HANDLERS.substring(1) + ")D"
+                            : "(D" + HANDLERS.substring(1) + ")D");
+                    }
+                }
+            }
+            body.write(DRETURN);
+
+            int thisClass = classRef(className);
+            int superClass = classRef("java/lang/Object");
+            int function = classRef(FUNCTION);
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int handlersField = fieldRef(className, "handlers", HANDLERS);
+            int codeName = utf8("Code");
+            int initName = utf8("<init>");
+            int initDesc = utf8("(" + HANDLERS + ")V");
+            int fieldName = utf8("handlers");
+            int fieldDesc = utf8(HANDLERS);
+            int evalName = utf8("eval");
+            int evalDesc = utf8("([D)D");
+            if (body.size() > 65535 || poolSize > 65535) return null;
+
+            // Конструктор сохраняет таблицу реализаций в поле handlers
+            ByteArrayOutputStream init = new ByteArrayOutputStream();
+            init.write(ALOAD_0);
+            init.write(INVOKESPECIAL);
+            writeShort(init, objectInit);
+            init.write(ALOAD_0);
+            init.write(ALOAD_1);
+            init.write(PUTFIELD);
+            writeShort(init, handlersField);
+            init.write(RETURN);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(0x0030);  // ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(function);
+            out.writeShort(1);
+            out.writeShort(0x0012);  // ACC_PRIVATE | ACC_FINAL
+            out.writeShort(fieldName);
+            out.writeShort(fieldDesc);
+            out.writeShort(0);       // атрибутов поля нет
+            out.writeShort(2);
+            writeMethod(out, initName, initDesc, codeName, 2, 2, init);
+            // Каждое значение double занимает два слота стека, плюс массив и индекс при чтении переменной
+            writeMethod(out, evalName, evalDesc, codeName, 2 * program.maxStackDepth + 2, 2 + 2 * program.tempCount, body);
+            out.writeShort(0);       // атрибутов класса нет
+            return bytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int desc, int codeName,
+                                        int maxStack, int maxLocals, ByteArrayOutputStream code) throws IOException {
+            out.writeShort(0x0001);  // ACC_PUBLIC
+            out.writeShort(name);
+            out.writeShort(desc);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.size());
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.size());
+            code.writeTo(out);
+            out.writeShort(0);       // таблица исключений
+            out.writeShort(0);       // атрибуты Code
+        }
+
+        private void invokeStatic(ByteArrayOutputStream body, String owner, String name, String desc) throws IOException {
+            body.write(INVOKESTATIC);
+            writeShort(body, methodRef(owner, name, desc));
+        }
+
+        private static void pushInt(ByteArrayOutputStream body, int value) {
+            if (value <= 5) {
+                body.write(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                body.write(BIPUSH);
+                body.write(value);
+            } else {
+                body.write(SIPUSH);
+                writeShort(body, value);
+            }
+        }
+
+        private static void writeShort(ByteArrayOutputStream body, int value) {
+            body.write(value >>> 8);
+            body.write(value);
+        }
+
+        // Константный пул: зависимости записываются раньше ссылающейся на них записи
+        private int utf8(String value) throws IOException {
+            Integer index = poolIndex.get("U" + value);
+            if (index != null) return index;
+            pool.writeByte(1);
+            pool.writeUTF(value);
+            return register("U" + value, 1);
+        }
+
+        private int classRef(String name) throws IOException {
+            Integer index = poolIndex.get("C" + name);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            pool.writeByte(7);
+            pool.writeShort(nameIndex);
+            return register("C" + name, 1);
+        }
+
+        private int methodRef(String owner, String name, String desc) throws IOException {
+            return memberRef(10, owner, name, desc);
+        }
+
+        private int fieldRef(String owner, String name, String desc) throws IOException {
+            return memberRef(9, owner, name, desc);
+        }
+
+        private int memberRef(int tag, String owner, String name, String desc) throws IOException {
+            String key = (tag == 9 ? "F" : "M") + owner + "." + name + desc;
+            Integer index = poolIndex.get(key);
+            if (index != null) return index;
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, desc);
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+            return register(key, 1);
+        }
+
+        private int nameAndType(String name, String desc) throws IOException {
+            Integer index = poolIndex.get("N" + name + desc);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            int descIndex = utf8(desc);
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descIndex);
+            return register("N" + name + desc, 1);
+        }
+
+        private int doubleConstant(double value) throws IOException {
+            String key = "D" + Double.doubleToRawLongBits(value);
+            Integer index = poolIndex.get(key);
+            if (index != null) return index;
+            pool.writeByte(6);
+            pool.writeDouble(value);
+            return register(key, 2);  // double занимает две записи пула
+        }
+
+        private int register(String key, int slots) {
+            int index = poolSize;
+            poolSize += slots;
+            poolIndex.put(key, index);
+            return index;
+        }
+    }
+    // Параллельный режим для выражений из миллионов слагаемых (см. evaluateParallel). Программа
+    // перестраивается (rebalance): цепочки + и - и цепочки * становятся сбалансированными деревьями,
+    // остальные операторы сохраняют порядок. Затем поддеревья больше CUTOFF команд считаются в
+    // ForkJoinPool, меньшие — последовательно. Форма дерева зависит только от выражения, а не от числа
+    // потоков, поэтому результат воспроизводим; но от evaluate он может отличаться в последних битах,
+    // потому что слагаемые и множители складываются в другом порядке.
+    static final class ParallelEvaluation {
+        // Поддерево не больше стольких команд считается последовательно: это десятки микросекунд,
+        // дробить мельче — терять на накладных расходах задач
+        static final int CUTOFF = 1 << 13;
+
+        // Кадры явного стека rebalance: дерево может быть глубиной в миллион узлов (1/2/3/.../n)
+        private static final int EMIT = 0;      // поддерево исходной программы с вершиной x
+        private static final int OUTPUT = 1;    // одна команда x исходной программы
+        private static final int SUM = 2;       // сумма членов цепочки x..y
+        private static final int PRODUCT = 3;   // произведение членов цепочки x..y
+        private static final int COMBINE = 4;   // команда с кодом x, соединяющая две половины цепочки
+
+        private ParallelEvaluation() {
+        }
+
+        // Размеры поддеревьев: в ОПН поддерево команды pc — это отрезок [pc - size[pc] + 1, pc],
+        // правый аргумент кончается в pc - 1, левый — перед правым
+        static int[] subtreeSizes(CompiledExpression program) {
+            int[] size = new int[program.code.length];
+            for (int pc = 0; pc < size.length; pc++) {
+                int arity = program.table.dialect.arity[program.code[pc]];
+                size[pc] = 1;
+                if (arity >= 1) size[pc] += size[pc - 1];
+                if (arity == 2) size[pc] += size[pc - 1 - size[pc - 1]];
+            }
+            return size;
+        }
+
+        private static int chain(byte op) {
+            return op == ADD || op == SUB ? SUM : op == MUL ? PRODUCT : 0;
+        }
+
+        // Каждая цепочка + и - (и отдельно цепочка *) собирается попарно: a1 + a2 + a3 + a4 считается как
+        // (a1 + a2) + (a3 + a4), глубина log n вместо n. Вычитание входит в цепочку как член со знаком
+        // минус: a - b и a + (-b) в IEEE 754 равны точно, так что знак переносится без потерь.
+        // Деление, степени и // не перестраиваются: для них перестановка меняет само значение.
+        // Программа должна быть без ошибок стека и без временных слотов (то есть не после оптимизатора).
+        static CompiledExpression rebalance(CompiledExpression program) {
+            byte[] code = program.code;
+            int[] operands = program.operands;
+            int length = code.length;
+            int[] size = subtreeSizes(program);
+            byte[] newCode = new byte[length];
+            int[] newOperands = new int[length];
+            int out = 0;
+
+            // Члены всех цепочек подряд, слева направо, и их знаки
+            int[] terms = new int[length];
+            boolean[] negative = new boolean[length];
+            int termCount = 0;
+            int[] walk = new int[2 * length];
+
+            int[] frames = new int[48];
+            int top = 0;
+            frames[top++] = EMIT;
+            frames[top++] = length - 1;
+            frames[top++] = 0;
+            while (top > 0) {
+                int y = frames[--top], x = frames[--top], kind = frames[--top];
+                if (frames.length < top + 9) frames = Arrays.copyOf(frames, frames.length * 2);
+                switch (kind) {
+                    case EMIT -> {
+                        int kindOfChain = chain(code[x]);
+                        if (kindOfChain != 0) {
+                            // Члены цепочки слева направо; обход с явным стеком, знак — во втором слоте
+                            int from = termCount, depth = 0;
+                            walk[depth++] = x;
+                            walk[depth++] = 0;
+                            while (depth > 0) {
+                                boolean minus = walk[--depth] != 0;
+                                int node = walk[--depth];
+                                if (chain(code[node]) == kindOfChain) {
+                                    int right = node - 1, left = right - size[right];
+                                    walk[depth++] = right;
+                                    walk[depth++] = minus ^ (code[node] == SUB) ? 1 : 0;
+                                    walk[depth++] = left;
+                                    walk[depth++] = minus ? 1 : 0;
+                                } else {
+                                    terms[termCount] = node;
+                                    negative[termCount++] = minus;
+                                }
+                            }
+                            frames[top++] = kindOfChain;
+                            frames[top++] = from;
+                            frames[top++] = termCount - 1;
+                        } else {
+                            int arity = program.table.dialect.arity[code[x]];
+                            frames[top++] = OUTPUT;
+                            frames[top++] = x;
+                            frames[top++] = 0;
+                            if (arity == 2) {
+                                frames[top++] = EMIT;
+                                frames[top++] = x - 1;
+                                frames[top++] = 0;
+                            }
+                            if (arity >= 1) {
+                                frames[top++] = EMIT;
+                                frames[top++] = arity == 2 ? x - 1 - size[x - 1] : x - 1;
+                                frames[top++] = 0;
+                            }
+                        }
+                    }
+                    case OUTPUT -> {
+                        newCode[out] = code[x];
+                        newOperands[out++] = operands[x];
+                    }
+                    case COMBINE -> newCode[out++] = (byte) x;
+                    default -> {
+                        if (x == y) {
+                            frames[top++] = EMIT;
+                            frames[top++] = terms[x];
+                            frames[top++] = 0;
+                            continue;
+                        }
+                        int mid = (x + y) >>> 1;
+                        // Часть цепочки выдаёт свою сумму, умноженную на знак первого члена: -a + b
+                        // выдаётся как a - b. Поэтому половины с одинаковыми знаками первых членов
+                        // складываются, с разными — вычитаются, а члены остаются в исходном порядке.
+                        byte op = kind == PRODUCT ? MUL : negative[x] == negative[mid + 1] ? ADD : SUB;
+                        frames[top++] = COMBINE;
+                        frames[top++] = op;
+                        frames[top++] = 0;
+                        // Кадры снимаются в обратном порядке: правая половина кладётся первой
+                        frames[top++] = kind;
+                        frames[top++] = mid + 1;
+                        frames[top++] = y;
+                        frames[top++] = kind;
+                        frames[top++] = x;
+                        frames[top++] = mid;
+                    }
+                }
+            }
+            return new CompiledExpression(newCode, newOperands, program.literals, program.exactLiterals,
+                program.variables, program.table, 0, program.violation);
+        }
+
+        static double evaluate(CompiledExpression program, double[] vars, ForkJoinPool pool) throws Exception {
+            Subtree root = new Subtree(program, subtreeSizes(program), vars, program.code.length - 1);
+            try {
+                return pool.invoke(root);
+            } catch (RuntimeException e) {
+                throw unwrap(e);
+            }
+        }
+
+        // join оборачивает исключение задачи в CompletionException, иногда не один раз; наружу — исходное
+        private static Exception unwrap(RuntimeException e) {
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+            return cause instanceof Exception exception ? exception : e;
+        }
+
+        // Операция по таблице программы: реализация из строки диалекта, ! с гамма-функцией, функции пользователя
+        private static double operate(CompiledExpression program, byte op, double a, double b) throws Exception {
+            return program.table.handlers[op].apply(a, b);
+        }
+
+        // Значение поддерева с вершиной root. Пока у узла больше CUTOFF только одно поддерево, спуск идёт
+        // циклом, а второе считается на месте — так цепочка 1/2/3/.../n не превращается в глубокую рекурсию.
+        // Узел, у которого оба поддерева больше CUTOFF, отдаёт правое в пул и считает левое сам.
+        // При ошибках в обоих наружу идёт ошибка левого, так что и сообщение не зависит от потоков.
+        private static final class Subtree extends RecursiveTask<Double> {
+            private static final long serialVersionUID = 1L;
+
+            private final transient CompiledExpression program;
+            private final int[] size;
+            private final double[] vars;
+            private final int root;
+
+            Subtree(CompiledExpression program, int[] size, double[] vars, int root) {
+                this.program = program;
+                this.size = size;
+                this.vars = vars;
+                this.root = root;
+            }
+
+            @Override
+            protected Double compute() {
+                try {
+                    return value(root);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+
+            private double value(int node) throws Exception {
+                byte[] code = program.code;
+                int[] path = new int[16];
+                int depth = 0;
+                while (size[node] > CUTOFF) {
+                    int right = node - 1, left = right - size[right];
+                    if (program.table.dialect.arity[code[node]] == 2 && size[left] > CUTOFF && size[right] > CUTOFF) break;
+                    if (depth == path.length) path = Arrays.copyOf(path, depth * 2);
+                    path[depth++] = node;
+                    node = program.table.dialect.arity[code[node]] == 2 && size[left] > CUTOFF ? left : right;
+                }
+
+                double result;
+                if (size[node] <= CUTOFF) {
+                    result = sequential(node);
+                } else {
+                    int right = node - 1, left = right - size[right];
+                    Subtree task = new Subtree(program, size, vars, right);
+                    task.fork();
+                    double a;
+                    try {
+                        a = value(left);
+                    } catch (Exception e) {
+                        task.cancel(false);
+                        throw e;
+                    }
+                    result = operate(program, code[node], a, task.join());
+                }
+
+                for (int child = node; depth > 0; ) {
+                    int parent = path[--depth];
+                    if (program.table.dialect.arity[code[parent]] == 1) {
+                        result = operate(program, code[parent], result, 0);
+                    } else if (child == parent - 1) {
+                        int left = parent - 1 - size[parent - 1];
+                        result = operate(program, code[parent], sequential(left), result);
+                    } else {
+                        result = operate(program, code[parent], result, sequential(parent - 1));
+                    }
+                    child = parent;
+                }
+                return result;
+            }
+
+            // Поддерево целиком в текущем потоке: отрезок ОПН на стековой машине, как в evalRPN
+            private double sequential(int node) throws Exception {
+                byte[] code = program.code;
+                int[] operands = program.operands;
+                double[] literals = program.literals;
+                double[] stack = scratch(program.maxStackDepth);
+                int sp = 0;
+                for (int pc = node - size[node] + 1; pc <= node; pc++) {
+                    byte token = code[pc];
+                    switch (token) {
+                        case NUM -> stack[sp++] = literals[operands[pc]];
+                        case VAR -> stack[sp++] = vars[operands[pc]];
+                        case ADD -> {
+                            sp--;
+                            stack[sp - 1] += stack[sp];
+                        }
+                        case SUB -> {
+                            sp--;
+                            stack[sp - 1] -= stack[sp];
+                        }
+                        case MUL -> {
+                            sp--;
+                            stack[sp - 1] *= stack[sp];
+                        }
+                        default -> {
+                            if (program.table.dialect.arity[token] == 1) {
+                                stack[sp - 1] = operate(program, token, stack[sp - 1], 0);
+                            } else {
+                                double b = stack[--sp];
+                                stack[sp - 1] = operate(program, token, stack[sp - 1], b);
+                            }
+                        }
+                    }
+                }
+                return stack[0];
+            }
+        }
+    }
+    // Потоковый режим для выражений, которые не нужно держать в памяти целиком (см. evaluateStream).
+    // Текст читается кусками по CHUNK символов и режется только там, где разбор не зависит от соседних
+    // символов (safeCut), а каждый кусок разбирается обычным tokenize. Токены сразу идут в сортировочную
+    // станцию, и каждый вышедший из неё оператор тут же вычисляется на стеке значений. Память — буфер
+    // куска и два стека глубиной с вложенность выражения, от длины текста она не зависит.
+    // Ошибки сообщаются в порядке текста: деление на ноль в начале раньше лишней скобки в конце.
+    static final class StreamingEvaluation {
+        private static final int CHUNK = 1 << 16;
+
+        private final ExpressionEvaluator evaluator;
+        // Таблица последнего разобранного куска: функции только добавляются, так что коды CALL + i
+        // из прежних кусков в ней те же
+        private OperationTable table;
+        private double[] values = new double[16];
+        private int sp;
+        private byte[] operators = new byte[16];
+        private int top;
+
+        StreamingEvaluation(ExpressionEvaluator evaluator) {
+            this.evaluator = evaluator;
+            this.table = evaluator.table;
+        }
+
+        double evaluate(Reader reader) throws Exception {
+            char[] buffer = new char[CHUNK];
+            int length = 0, read;
+            while ((read = reader.read(buffer, length, buffer.length - length)) >= 0) {
+                length += read;
+                if (length < buffer.length) continue;
+                int cut = safeCut(buffer, length);
+                if (cut == 0) {
+                    // Во всём буфере нет места для разреза (одно очень длинное число или имя)
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                    continue;
+                }
+                feed(new String(buffer, 0, cut));
+                System.arraycopy(buffer, cut, buffer, 0, length - cut);
+                length -= cut;
+            }
+            feed(new String(buffer, 0, length));
+
+            while (top > 0) {
+                byte op = operators[--top];
+                if (op == LPAREN) {
+                    throw new EvaluationException(EvaluatorMetrics.ErrorKind.UNBALANCED_BRACKETS, table.dialect.bracketMessage());
+                }
+                emit(op);
+            }
+            if (sp != 1) throw new Exception("Ошибка вычисления");
+            return values[0];
+        }
+
+        // Последняя позиция p, перед которой можно разрезать текст: токен слева кончается на p - 1,
+        // а токен справа разбирается так же, как в целом тексте. Минус в начале куска tokenize считает
+        // унарным, поэтому перед минусом режем только там, где он унарный и в целом тексте. 0 — места нет.
+        static int safeCut(char[] buffer, int length) {
+            for (int p = length - 1; p > 0; p--) {
+                char prev = buffer[p - 1], next = buffer[p];
+                boolean binaryMinus = prev == '-' && p >= 2 && (isAsciiDigit(buffer[p - 2]) || buffer[p - 2] == ')');
+                boolean ends = Character.isWhitespace(prev) || prev == '(' || prev == ')' || prev == '+' || prev == '^'
+                    || prev == '!' || binaryMinus || (prev == '*' || prev == '/') && next != prev;
+                if (!ends) continue;
+                if (next != '-' || prev == '(' || prev == '+' || prev == '^' || binaryMinus) return p;
+            }
+            return 0;
+        }
+
+        private void feed(String piece) throws Exception {
+            Tokens tokens = evaluator.tokenize(piece);
+            if (tokens.error != null) throw tokens.error;
+            table = tokens.table;
+            int[] kind = table.dialect.kind;
+            int[] precedence = table.dialect.precedence;
+            boolean[] rightAssociative = table.dialect.rightAssociative;
+            if (!tokens.variables.isEmpty()) {
+                throw new Exception("Не заданы значения переменных: " + String.join(", ", tokens.variables));
+            }
+            for (int t = 0; t < tokens.size; t++) {
+                byte token = tokens.ops[t];
+                if (token == NUM) {
+                    push(tokens.literals[t]);
+                } else if (kind[token] == FUNCTION) {
+                    pushOperator(token);
+                } else if (kind[token] == POSTFIX) {
+                    emit(token);
+                } else if (kind[token] == OPERATOR) {
+                    while (top > 0 && kind[operators[top - 1]] == OPERATOR) {
+                        byte opTop = operators[top - 1];
+                        if ((!rightAssociative[token] && precedence[token] <= precedence[opTop]) ||
+                            (rightAssociative[token] && precedence[token] < precedence[opTop])) {
+                            emit(operators[--top]);
+                        } else {
+                            break;
+                        }
+                    }
+                    pushOperator(token);
+                } else if (token == LPAREN) {
+                    pushOperator(token);
+                } else if (token == RPAREN) {
+                    while (top > 0 && operators[top - 1] != LPAREN) {
+                        emit(operators[--top]);
+                    }
+                    if (top == 0) {
+                        throw new EvaluationException(EvaluatorMetrics.ErrorKind.UNBALANCED_BRACKETS, table.dialect.bracketMessage());
+                    }
+                    top--;
+                    if (top > 0 && kind[operators[top - 1]] == FUNCTION) {
+                        emit(operators[--top]);
+                    }
+                } else if (token == BAD) {
+                    throw new EvaluationException(EvaluatorMetrics.ErrorKind.UNKNOWN_SYMBOL,
+                        "Неизвестный токен: " + tokens.badTokens.get((int) tokens.literals[t]));
+                }
+            }
+        }
+
+        private void push(double value) {
+            if (sp == values.length) values = Arrays.copyOf(values, sp * 2);
+            values[sp++] = value;
+        }
+
+        private void pushOperator(byte op) {
+            if (top == operators.length) operators = Arrays.copyOf(operators, top * 2);
+            operators[top++] = op;
+        }
+
+        // Оператор из сортировочной станции вычисляется сразу; нехватка операндов — как в evalRPN
+        private void emit(byte op) throws Exception {
+            int arity = table.dialect.arity[op];
+            if (sp < arity) throw new Exception(table.dialect.underflowMessage(op, table.functions));
+            if (arity == 1) {
+                values[sp - 1] = operate(op, values[sp - 1], 0);
+            } else {
+                double b = values[--sp];
+                values[sp - 1] = operate(op, values[sp - 1], b);
+            }
+        }
+
+        private double operate(byte op, double a, double b) throws Exception {
+            return table.handlers[op].apply(a, b);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package calculator.engine;
+
+import java.math.BigDecimal;
+
+// Строка таблицы операций диалекта (см. Dialect): код команды, запись в тексте, число аргументов,
+// приоритет, ассоциативность, роль при разборе и реализация. Реализация нужна всем путям вычисления,
+// кроме частых команд, которые interpret выполняет сам (см. ExpressionEvaluator.INLINED): свёртке
+// констант, точному и десятичному режимам, градиенту, параллельному и потоковому режимам, байткоду.
+// Новая операция — это строка в таблице диалекта и её Implementation, ветки в движке не нужны.
+public record Operation(byte code, String symbol, int arity, int precedence, boolean rightAssociative,
+                        int kind, Implementation implementation) {
+
+    // Вычисление одной операции. Для унарных b не используется: 0 в double и null в десятичном режиме.
+    public interface Implementation {
+        double apply(double a, double b) throws Exception;
+
+        // Вклад в сопряжённое значение аргумента argument (0 — левый или единственный, 1 — правый)
+        // при обратном проходе градиента; value — значение самой операции, adjoint — её сопряжённое
+        double derivative(int argument, double adjoint, double a, double b, double value) throws Exception;
+
+        // Точный режим: аргументы в ячейках i и i + 1, результат — в i. По умолчанию считается в double,
+        // как log и exp
+        default void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) throws Exception {
+            stack.setReal(i, apply(stack.toDouble(i), arity == 2 ? stack.toDouble(i + 1) : 0));
+        }
+
+        // Десятичный режим; по умолчанию считается в double, и точность результата — точность double
+        default BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+            return ExpressionEvaluator.toDecimal(apply(a.doubleValue(), b == null ? 0 : b.doubleValue()));
+        }
+    }
+
+    // Операции, общие для всех диалектов. Их же interpret, evalBlock и BytecodeCompiler выполняют
+    // без таблицы, поэтому диалект обязан объявлять эти коды именно с ними (см. Dialect).
+    public enum Standard implements Implementation {
+        ADD {
+            @Override
+            public double apply(double a, double b) {
+                return a + b;
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return adjoint;
+            }
+
+            @Override
+            public void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) {
+                stack.add(i);
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) {
+                return a.add(b, math.mathContext);
+            }
+        },
+        SUB {
+            @Override
+            public double apply(double a, double b) {
+                return a - b;
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return argument == 0 ? adjoint : -adjoint;
+            }
+
+            @Override
+            public void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) {
+                stack.subtract(i);
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) {
+                return a.subtract(b, math.mathContext);
+            }
+        },
+        MUL {
+            @Override
+            public double apply(double a, double b) {
+                return a * b;
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return argument == 0 ? adjoint * b : adjoint * a;
+            }
+
+            @Override
+            public void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) {
+                stack.multiply(i);
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) {
+                return a.multiply(b, math.mathContext);
+            }
+        },
+        // При y = 0 ошибка, как и при вычислении
+        DIV {
+            @Override
+            public double apply(double a, double b) throws Exception {
+                return ExpressionEvaluator.divide(a, b);
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return argument == 0 ? adjoint / b : -(adjoint * value / b);
+            }
+
+            @Override
+            public void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) throws Exception {
+                stack.divide(i);
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+                return math.divide(a, b);
+            }
+        },
+        // Производная 0 по обоим аргументам: частное кусочно-постоянное, скачки не учитываются
+        IDIV {
+            @Override
+            public double apply(double a, double b) throws Exception {
+                return ExpressionEvaluator.intDivide(a, b);
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return 0;
+            }
+
+            @Override
+            public void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) throws Exception {
+                stack.intDivide(i);
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+                return math.intDivide(a, b);
+            }
+        },
+        // По x при y = 0 производная 0, при x = 0 и 0 < y < 1 — Infinity; по y при x < 0 NaN
+        // (степень определена только для целых y), при x = 0 — 0 для y > 0 и NaN иначе
+        POW {
+            @Override
+            public double apply(double a, double b) {
+                return Math.pow(a, b);
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                if (argument == 0) return adjoint * (b == 0 ? 0 : b * Math.pow(a, b - 1));
+                return adjoint * (a > 0 ? value * Math.log(a) : a == 0 && b > 0 ? 0 : Double.NaN);
+            }
+
+            @Override
+            public void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) {
+                stack.power(i);
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+                return math.pow(a, b);
+            }
+        },
+        // x^0.5 после оптимизатора; при x = 0 производная Infinity
+        SQRT {
+            @Override
+            public double apply(double a, double b) {
+                return ExpressionEvaluator.sqrtPow(a);
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return adjoint * 0.5 / value;
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+                return math.sqrt(a);
+            }
+        },
+        EXP {
+            @Override
+            public double apply(double a, double b) {
+                return Math.exp(a);
+            }
+
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return adjoint * value;
+            }
+
+            @Override
+            public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+                return math.exp(a);
+            }
+        }
+    }
+
+    // Факториал целого неотрицательного числа, остальные аргументы — ошибка domainError.
+    // Производная — гладкого продолжения Γ(x + 1), то есть x! ψ(x + 1), в том числе в целых точках.
+    // Точный режим считает n! точно (BigInteger), десятичный — с точностью MathContext.
+    public static class Factorial implements Implementation {
+        final String domainError;
+
+        public Factorial(String domainError) {
+            this.domainError = domainError;
+        }
+
+        @Override
+        public double apply(double a, double b) throws Exception {
+            if (a < 0 || a != Math.floor(a)) throw new Exception(domainError);
+            return integer((int) a);
+        }
+
+        // n! для целого n >= 0 в double: до 170! из таблицы, дальше бесконечность
+        protected double integer(int n) {
+            return ExpressionEvaluator.factorial(n);
+        }
+
+        @Override
+        public double derivative(int argument, double adjoint, double a, double b, double value) {
+            return adjoint * value * ExpressionEvaluator.digamma(a + 1);
+        }
+
+        @Override
+        public void exact(ExpressionEvaluator.ExactStack stack, int i, int arity) throws Exception {
+            stack.factorial(i, this);
+        }
+
+        @Override
+        public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+            return math.factorial(a, false, domainError);
+        }
+    }
+
+    // Логарифм по основанию 2. В double, как Math.log: 0 даёт -Infinity, отрицательные — NaN, и производная
+    // при x < 0 тоже NaN. В десятичном режиме ни того, ни другого нет, там x <= 0 — ошибка domainError.
+    public static class Logarithm implements Implementation {
+        final String domainError;
+
+        public Logarithm(String domainError) {
+            this.domainError = domainError;
+        }
+
+        @Override
+        public double apply(double a, double b) throws Exception {
+            return ExpressionEvaluator.log2(a);
+        }
+
+        @Override
+        public double derivative(int argument, double adjoint, double a, double b, double value) {
+            return adjoint * (a < 0 ? Double.NaN : 1 / (a * ExpressionEvaluator.LN2));
+        }
+
+        @Override
+        public BigDecimal decimal(ExpressionEvaluator.DecimalMath math, BigDecimal a, BigDecimal b) throws Exception {
+            if (a.signum() <= 0) throw new Exception(domainError);
+            return math.log2(a);
+        }
+    }
+}
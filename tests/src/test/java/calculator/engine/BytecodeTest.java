@@ -0,0 +1,123 @@
+package calculator.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import calculator.engine.ExpressionEvaluator.CompiledExpression;
+import calculator.engine.ExpressionEvaluator.ExpressionFunction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// Байткод (CompiledExpression.toBytecode) против интерпретатора (evaluate) на одних и тех же программах:
+// значение должно совпадать бит в бит, а ошибка — тем же сообщением
+class BytecodeTest {
+    private static final int EXPRESSIONS = 2_000;
+    private static final int POINTS = 8;
+    private static final String[] LEAVES = {"0", "1", "2", "3", "2.5", "0.5", "10", "x", "y", "z"};
+    // Значения переменных: ноль для деления и логарифма, отрицательные и дробные для ! и log
+    private static final double[] VALUES = {0, 1, -1, 2, 3, 0.5, -2.5, 7, 170, 171};
+
+    static Stream<Arguments> dialects() {
+        return Stream.of(
+            Arguments.of("ПР№1", pr1.Main.DIALECT),
+            Arguments.of("ПР№2", pr2.Main.DIALECT),
+            Arguments.of("ПР№3", pr3.Main.DIALECT));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("dialects")
+    void generatedExpressions(String name, Dialect dialect) throws Exception {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(dialect);
+        Random random = new Random(17);
+        int compiled = 0, generated = 0;
+        for (int i = 0; i < EXPRESSIONS; i++) {
+            String expr = expression(dialect, random, 4);
+            CompiledExpression program;
+            try {
+                program = evaluator.compile(expr);
+            } catch (Exception e) {
+                continue;  // выражение не разбирается; байткоду сравнивать нечего
+            }
+            compiled++;
+            if (ExpressionEvaluator.BytecodeCompiler.generate(program) != null) generated++;
+            for (int point = 0; point < POINTS; point++) {
+                double[] vars = new double[program.getVariables().size()];
+                for (int slot = 0; slot < vars.length; slot++) vars[slot] = VALUES[random.nextInt(VALUES.length)];
+                compare(program, expr, vars);
+            }
+        }
+        assertTrue(compiled > EXPRESSIONS / 2, "разобрано только " + compiled + " выражений из " + EXPRESSIONS);
+        // Для программы с ошибкой стека toBytecode оставляет интерпретатор; остальные должны стать классами
+        assertTrue(generated > compiled / 2, "байткод построен только для " + generated + " программ из " + compiled);
+    }
+
+    // Пути ошибок, которые байткод выполняет через таблицу операций или сам: //, !, log и деление на ноль
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("dialects")
+    void errorPaths(String name, Dialect dialect) throws Exception {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(dialect);
+        List<String> cases = List.of(
+            "1/0", "x/y", "x/(y-y)", "0/0", "7//0", "7//2", "7//0.5", "x//y", "(0-7)//2", "7.5//2",
+            "5!", "2.5!", "(0-3)!", "x!", "(x+y)!", "171!", "20!",
+            "log(8)", "log(0)", "log(0-1)", "log(x)", "exp(x)/y");
+        // В диалекте без log и exp их имена — тоже переменные, поэтому слотов бывает до трёх
+        double[][] points = {{0, 0, 0}, {3, 0, 1}, {-1, 2, 0}, {2.5, -2.5, 3}, {170, 1, -1}, {0.5, 0.5, 0.5}};
+        int compiled = 0;
+        for (String expr : cases) {
+            CompiledExpression program;
+            try {
+                program = evaluator.compile(expr);
+            } catch (Exception e) {
+                continue;  // операции нет в диалекте
+            }
+            compiled++;
+            for (double[] point : points) {
+                double[] vars = new double[program.getVariables().size()];
+                for (int slot = 0; slot < vars.length; slot++) vars[slot] = point[slot];
+                compare(program, expr, vars);
+            }
+        }
+        assertTrue(compiled > 0);
+    }
+
+    private static void compare(CompiledExpression program, String expr, double[] vars) {
+        ExpressionFunction function = program.toBytecode();
+        String expected = outcome(() -> program.evaluate(vars));
+        String actual = outcome(() -> function.eval(vars));
+        assertEquals(expected, actual, () -> expr + " при " + Arrays.toString(vars));
+    }
+
+    private interface Evaluation {
+        double run() throws Exception;
+    }
+
+    // Значение в битах (все NaN — один) или класс и сообщение ошибки
+    private static String outcome(Evaluation evaluation) {
+        try {
+            return "= " + Long.toHexString(Double.doubleToLongBits(evaluation.run()));
+        } catch (Exception e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    // Случайное выражение из операций диалекта: бинарные — в скобках или без (тогда работают приоритеты),
+    // постфиксные и функции — над выражением в скобках
+    private static String expression(Dialect dialect, Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) return LEAVES[random.nextInt(LEAVES.length)];
+        Operation operation;
+        do {
+            operation = dialect.operation((byte) (Dialect.ADD + random.nextInt(Dialect.EXP - Dialect.ADD + 1)));
+        } while (operation == null || operation.kind() == Dialect.SYNTAX);
+        String a = expression(dialect, random, depth - 1);
+        if (operation.kind() == Dialect.FUNCTION) return operation.symbol() + "(" + a + ")";
+        if (operation.arity() == 1) return "(" + a + ")" + operation.symbol();
+        String b = expression(dialect, random, depth - 1);
+        String binary = a + operation.symbol() + b;
+        return random.nextBoolean() ? "(" + binary + ")" : binary;
+    }
+}
@@ -0,0 +1,125 @@
+package calculator.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Разбор чисел (parseNumber, eiselLemire) против Double.parseDouble: результат должен совпадать бит в бит
+class NumberParsingTest {
+    private static final int RANDOM_CASES = 20_000;
+
+    // Ровно посередине между соседними double и на одну единицу последнего разряда по обе стороны:
+    // первое округляется к чётному, остальные — к ближайшему
+    @Test
+    void halfwayCases() {
+        Random random = new Random(11);
+        List<String> cases = new ArrayList<>(List.of(
+            "9007199254740993", "9007199254740995", "9007199254740993.0000000000000000001",
+            "9007199254740992.9999999999999999999", "0.5", "2.5", "1.00000000000000011102230246251565404236316680908203125"));
+        for (int i = 0; i < 2_000; i++) {
+            double d = Math.scalb(1 + random.nextDouble(), random.nextInt(120) - 40);
+            BigDecimal halfway = new BigDecimal(d).add(new BigDecimal(Math.nextUp(d))).divide(BigDecimal.valueOf(2));
+            BigDecimal unit = BigDecimal.ONE.movePointLeft(halfway.scale());
+            cases.add(halfway.toPlainString());
+            cases.add(halfway.add(unit).toPlainString());
+            cases.add(halfway.subtract(unit).toPlainString());
+        }
+        for (String text : cases) check(text);
+    }
+
+    // Значащих цифр ровно 19 помещается в long, с 20-й начинаются отброшенные цифры
+    @Test
+    void nineteenAndTwentyDigits() {
+        for (String text : List.of(
+                "9999999999999999999", "10000000000000000000", "18446744073709551615", "18446744073709551616",
+                "9223372036854775807", "9223372036854775808", "99999999999999999999", "12345678901234567890",
+                "1234567890123456789.5", "0.00000000001234567890123456789", "1844674407370955161.5")) {
+            check(text);
+        }
+        Random random = new Random(19);
+        for (int i = 0; i < RANDOM_CASES; i++) check(digits(random, 18 + random.nextInt(4)));
+    }
+
+    @Test
+    void moreThanFortyDigits() {
+        Random random = new Random(41);
+        for (int i = 0; i < RANDOM_CASES; i++) check(digits(random, 41 + random.nextInt(80)));
+        check("1" + "0".repeat(22) + "1" + "0".repeat(30));
+        check("0." + "9".repeat(60));
+    }
+
+    // Субнормальные числа и исчезновение порядка: Эйзель — Лемир отдаёт их parseDouble
+    @Test
+    void subnormals() {
+        check(new BigDecimal(Double.MIN_VALUE).toPlainString());
+        check(new BigDecimal(Double.MIN_VALUE).divide(BigDecimal.valueOf(2)).toPlainString());
+        check(new BigDecimal(Double.MIN_VALUE).divide(BigDecimal.valueOf(2)).add(BigDecimal.ONE.movePointLeft(400)).toPlainString());
+        check(new BigDecimal(Double.MIN_NORMAL).toPlainString());
+        check(new BigDecimal(Math.nextDown(Double.MIN_NORMAL)).toPlainString());
+        check("0." + "0".repeat(330) + "1");
+        Random random = new Random(308);
+        for (int i = 0; i < 2_000; i++) check("0." + "0".repeat(300 + random.nextInt(25)) + digits(random, 1 + random.nextInt(25)).replace(".", ""));
+    }
+
+    // Больше Double.MAX_VALUE — бесконечность; ровно посередине до следующей степени двойки — тоже
+    @Test
+    void overflow() {
+        BigDecimal max = new BigDecimal(Double.MAX_VALUE);
+        BigDecimal ulp = new BigDecimal(Math.ulp(Double.MAX_VALUE));
+        check(max.toPlainString());
+        check(max.add(ulp.divide(BigDecimal.valueOf(2))).toPlainString());
+        check(max.add(ulp.divide(BigDecimal.valueOf(2))).subtract(BigDecimal.ONE).toPlainString());
+        check("1" + "0".repeat(309));
+        check("9".repeat(400));
+    }
+
+    // Знак, ведущие нули, точка с краю и число в середине текста
+    @Test
+    void layout() {
+        for (String text : List.of("-0", "-0.0", "0", "000123.4500", ".5", "5.", "-.5", "-12345678901234567890.5", "0.1", "-0.1")) {
+            check(text);
+        }
+        String expr = "x+123.456*2";
+        assertEquals(123.456, ExpressionEvaluator.parseNumber(expr, 2, 9));
+    }
+
+    // Эйзель — Лемир сам по себе: либо верный ответ, либо NaN — отказ, после которого разбирает parseDouble
+    @Test
+    void eiselLemire() {
+        Random random = new Random(5);
+        int answered = 0;
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            long w = random.nextLong();
+            if (w == 0) continue;
+            int q = random.nextInt(129) - 64;
+            double value = ExpressionEvaluator.eiselLemire(w, q);
+            if (Double.isNaN(value)) continue;
+            answered++;
+            // parseDouble, а не BigDecimal.doubleValue: до JDK 19 тот округлял неточно
+            double expected = Double.parseDouble(Long.toUnsignedString(w) + "e" + q);
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(value), () -> w + "e" + q);
+        }
+        assertTrue(answered > RANDOM_CASES * 9 / 10, "ответов только " + answered);
+    }
+
+    private static void check(String text) {
+        double expected = Double.parseDouble(text);
+        double actual = ExpressionEvaluator.parseNumber(text, 0, text.length());
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual),
+            () -> text + ": ожидалось " + expected + ", получено " + actual);
+    }
+
+    // count случайных цифр (первая не ноль) и иногда точка между ними
+    private static String digits(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        text.append((char) ('1' + random.nextInt(9)));
+        for (int i = 1; i < count; i++) text.append((char) ('0' + random.nextInt(10)));
+        if (random.nextBoolean()) text.insert(1 + random.nextInt(count), '.');
+        return text.toString();
+    }
+}
@@ -0,0 +1,182 @@
+package calculator.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import calculator.engine.ExpressionEvaluator.CompiledExpression;
+import calculator.engine.ExpressionEvaluator.ExpressionCache;
+import calculator.engine.ExpressionEvaluator.OperationTable;
+import calculator.engine.ExpressionEvaluator.OptimizerOptions;
+import calculator.engine.ExpressionEvaluator.ProgramStore;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Хранилище программ (ProgramStore): запись и чтение, порча и обрезка файла, устаревшие записи
+// и отказ отдавать программы, собранные с другими проходами оптимизатора или для другого диалекта
+class ProgramStoreTest {
+    private static final Dialect DIALECT = pr3.Main.DIALECT;
+    // Заголовок: MAGIC, VERSION, подпись диалекта, проходы оптимизатора, число записей
+    private static final int HEADER_SIZE = 20;
+    private static final List<String> LIBRARY = List.of(
+        "1+2*3", "(x+y)^2-x*y", "log(8)+exp(0)", "5!//3", "12345678901234567890.5*x", "x/(y-y)", "2^0.5+x*x", "x * y");
+    private static final double[] POINT = {3, 1.5};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writeAndReopen() throws Exception {
+        Path file = save();
+        ProgramStore store = ProgramStore.open(file);
+        assertEquals(LIBRARY.size(), store.size());
+        assertEquals(0, store.getCorrupted());
+        assertEquals(OptimizerOptions.ALL, store.getOptions());
+
+        OperationTable table = new OperationTable(DIALECT, false);
+        ExpressionEvaluator reference = new ExpressionEvaluator(DIALECT);
+        for (String expr : LIBRARY) {
+            CompiledExpression stored = store.get(ExpressionCache.normalize(expr), OptimizerOptions.ALL, table);
+            assertNotNull(stored, expr);
+            CompiledExpression compiled = reference.compile(expr);
+            assertEquals(compiled.getVariables(), stored.getVariables(), expr);
+            assertEquals(outcome(compiled), outcome(stored), expr);
+        }
+
+        // Вычислитель с хранилищем берёт программы из него и считает то же самое
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(DIALECT);
+        evaluator.useProgramStore(store);
+        for (String expr : LIBRARY) assertEquals(outcome(reference.compile(expr)), outcome(evaluator.compile(expr)), expr);
+    }
+
+    @Test
+    void missingFileIsEmpty() throws IOException {
+        ProgramStore store = ProgramStore.open(directory.resolve("missing.bin"));
+        assertEquals(0, store.size());
+        assertEquals(0, store.getCorrupted());
+        assertNull(store.getOptions());
+    }
+
+    // Испорченная запись пропускается по контрольной сумме, остальные читаются
+    @Test
+    void flippedByte() throws Exception {
+        Path file = save();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[HEADER_SIZE + 4 + 1] ^= 0x40;  // второй байт тела первой записи
+        Files.write(file, bytes);
+
+        ProgramStore store = ProgramStore.open(file);
+        assertEquals(1, store.getCorrupted());
+        assertEquals(LIBRARY.size() - 1, store.size());
+        OperationTable table = new OperationTable(DIALECT, false);
+        for (String expr : LIBRARY.subList(1, LIBRARY.size())) {
+            assertNotNull(store.get(ExpressionCache.normalize(expr), OptimizerOptions.ALL, table), expr);
+        }
+    }
+
+    // Обрезанный файл: записи после места обрыва считаются испорченными
+    @Test
+    void truncatedFile() throws Exception {
+        Path file = save();
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        ProgramStore store = ProgramStore.open(file);
+        assertEquals(1, store.getCorrupted());
+        assertEquals(LIBRARY.size() - 1, store.size());
+
+        // Обрыв сразу после заголовка: не читается ни одна запись
+        Files.write(file, Arrays.copyOf(bytes, HEADER_SIZE + 2));
+        store = ProgramStore.open(file);
+        assertEquals(LIBRARY.size(), store.getCorrupted());
+        assertEquals(0, store.size());
+
+        // Без полного заголовка это уже не хранилище
+        Files.write(file, Arrays.copyOf(bytes, HEADER_SIZE - 1));
+        assertThrows(IOException.class, () -> ProgramStore.open(file));
+    }
+
+    // Устаревшие записи — те, текстов которых в библиотеке больше нет. Тексты сравниваются после
+    // нормализации: серия пробельных символов равна одному пробелу
+    @Test
+    void stale() throws Exception {
+        ProgramStore store = ProgramStore.open(save());
+        List<String> library = LIBRARY.stream().skip(1).map(expr -> expr.replace(" ", " \t  ")).toList();
+        assertEquals(List.of(ExpressionCache.normalize(LIBRARY.get(0))), store.stale(library));
+        assertEquals(List.of(), store.stale(LIBRARY));
+    }
+
+    // Программы, собранные с другими проходами оптимизатора, не отдаются; вычислитель разбирает текст сам
+    @Test
+    void optionsMismatch() throws Exception {
+        ProgramStore store = ProgramStore.open(save());
+        OperationTable table = new OperationTable(DIALECT, false);
+        for (String expr : LIBRARY) {
+            assertNull(store.get(ExpressionCache.normalize(expr), OptimizerOptions.NONE, table), expr);
+        }
+        ExpressionEvaluator reference = new ExpressionEvaluator(DIALECT, ExpressionCache.DEFAULT_SIZE, OptimizerOptions.NONE);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(DIALECT, ExpressionCache.DEFAULT_SIZE, OptimizerOptions.NONE);
+        evaluator.useProgramStore(store);
+        for (String expr : LIBRARY) assertEquals(outcome(reference.compile(expr)), outcome(evaluator.compile(expr)), expr);
+    }
+
+    // Программы другого диалекта не отдаются: их коды команд значат там другое
+    @Test
+    void signatureMismatch() throws Exception {
+        ProgramStore store = ProgramStore.open(save());
+        assertNotEquals(DIALECT.signature, pr2.Main.DIALECT.signature);
+        OperationTable other = new OperationTable(pr2.Main.DIALECT, false);
+        for (String expr : LIBRARY) {
+            assertNull(store.get(ExpressionCache.normalize(expr), OptimizerOptions.ALL, other), expr);
+        }
+        ExpressionEvaluator reference = new ExpressionEvaluator(pr2.Main.DIALECT);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(pr2.Main.DIALECT);
+        evaluator.useProgramStore(store);
+        for (String expr : LIBRARY) assertEquals(outcome(reference, expr), outcome(evaluator, expr), expr);
+    }
+
+    // Файл чужого формата или другой версии — IOException
+    @Test
+    void foreignFile() throws Exception {
+        Path file = save();
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(4, 2);
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> ProgramStore.open(file));
+
+        Files.writeString(file, "1+2*3\n".repeat(10));
+        assertThrows(IOException.class, () -> ProgramStore.open(file));
+    }
+
+    private Path save() throws IOException {
+        Path file = directory.resolve("programs.bin");
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(DIALECT);
+        assertEquals(LIBRARY.size(), evaluator.savePrograms(file, LIBRARY));
+        return file;
+    }
+
+    // Значение в точке POINT в битах или сообщение ошибки
+    private static String outcome(CompiledExpression program) {
+        try {
+            double[] vars = Arrays.copyOf(POINT, program.getVariables().size());
+            return "= " + Long.toHexString(Double.doubleToLongBits(program.evaluate(vars)));
+        } catch (Exception e) {
+            return "ошибка: " + e.getMessage();
+        }
+    }
+
+    private static String outcome(ExpressionEvaluator evaluator, String expr) {
+        try {
+            return outcome(evaluator.compile(expr));
+        } catch (Exception e) {
+            return "ошибка разбора: " + e.getMessage();
+        }
+    }
+}
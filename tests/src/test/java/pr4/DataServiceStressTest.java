@@ -0,0 +1,108 @@
+package pr4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+// Нагрузочная проверка DataService: потоки вперемешку читают и пишут общий набор ключей
+class DataServiceStressTest {
+    private static final int KEYS = 64;
+    private static final int OPERATIONS = 200_000;
+
+    // DataService сообщает о каждом обращении, здесь это миллионы строк. PrintStream.println берёт
+    // блокировку потока даже над nullOutputStream, и все потоки теста сходились бы на ней, а не на
+    // DataService; здесь println ничего не делает и ничего не блокирует
+    private static final class Discard extends PrintStream {
+        Discard() {
+            super(OutputStream.nullOutputStream());
+        }
+
+        @Override
+        public void println(String line) {
+        }
+    }
+
+    // read-only элементы не меняются и не заменяются, каждая запись в них отклоняется, изменяемые
+    // ключи не пропадают и не становятся read-only, а итоговое значение изменяемого ключа —
+    // последняя запись в него одного из потоков
+    @Test
+    void concurrentReadsAndWrites() throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        DataService service = new DataService(new Discard());
+        DataItem[] readOnly = new DataItem[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            if (k % 2 == 0) {
+                readOnly[k] = new DataItem("key" + k, "ro" + k, true);
+                service.load(readOnly[k]);
+            } else {
+                service.load(new DataItem("key" + k, "initial", false));
+            }
+        }
+
+        String[][] lastWrite = new String[threads][KEYS];
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong readOnlyWrites = new AtomicLong();
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < OPERATIONS; i++) {
+                    int k = random.nextInt(KEYS);
+                    String key = "key" + k;
+                    if (random.nextInt(4) == 0) {
+                        String value = id + ":" + i;
+                        try {
+                            service.save(new DataItem(key, value, false));
+                            if (readOnly[k] != null) failures.add("запись в read-only " + key + " прошла");
+                            lastWrite[id][k] = value;
+                        } catch (IllegalArgumentException e) {
+                            if (readOnly[k] != null) rejected.incrementAndGet();
+                            else failures.add("запись в " + key + " отклонена");
+                        }
+                        if (readOnly[k] != null) readOnlyWrites.incrementAndGet();
+                    } else {
+                        DataItem item = service.getByKey(key);
+                        if (item == null) {
+                            failures.add("ключ " + key + " пропал");
+                        } else if (readOnly[k] != null && item != readOnly[k]) {
+                            failures.add("read-only " + key + " заменён: " + item);
+                        } else if (readOnly[k] == null && item.isReadOnly()) {
+                            failures.add("изменяемый " + key + " стал read-only");
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+
+        for (int k = 0; k < KEYS; k++) {
+            if (readOnly[k] != null) continue;
+            String value = service.getByKey("key" + k).getValue();
+            boolean written = value.equals("initial");
+            for (int t = 0; t < threads && !written; t++) written = value.equals(lastWrite[t][k]);
+            if (!written) failures.add("итог key" + k + " = " + value + " не последняя запись ни одного потока");
+        }
+        assertTrue(failures.isEmpty(), () -> "Ошибок: " + failures.size() + ", первая: " + failures.get(0));
+        assertEquals(readOnlyWrites.get(), rejected.get(), "отклонены не все записи в read-only");
+    }
+}
@@ -1,230 +1,175 @@
-import java.util.*;
-import java.util.regex.*;
-
+import calculator.engine.CalculatorLauncher;
+import calculator.engine.Dialect;
+import calculator.engine.ExpressionEvaluator.EvaluationException;
+import calculator.engine.ExpressionEvaluator.EvaluatorMetrics;
+import calculator.engine.ExpressionEvaluator.Tokens;
+import calculator.engine.ExpressionEvaluator.UserFunction;
+import calculator.engine.Operation;
+import calculator.engine.Operation.Standard;
+
+// Калькулятор ПР№1: + - * / // ^ и скобки, не больше 99 операторов.
+// Здесь только синтаксис (Dialect): таблица операций, разбор текста и сообщения. Вычисление, кэши,
+// хранилище программ, метрики и сервер — общий движок из модуля engine (пакет calculator.engine).
+// Запуск одним файлом (JDK 17+), движок — собранный jar:
+//   mvn -B -q package -pl engine && java -cp engine/target/calculator-engine-1.0-SNAPSHOT.jar ПР№1.java
 public class Main {
+    public static final Dialect DIALECT = new Syntax();
+
+    static final class Syntax extends Dialect {
+        private static final int MAX_OPERATORS = 99;
+
+        Syntax() {
+            super(
+                new Operation(ADD, "+", 2, 1, false, OPERATOR, Standard.ADD),
+                new Operation(SUB, "-", 2, 1, false, OPERATOR, Standard.SUB),
+                new Operation(MUL, "*", 2, 2, false, OPERATOR, Standard.MUL),
+                new Operation(DIV, "/", 2, 2, false, OPERATOR, Standard.DIV),
+                new Operation(IDIV, "//", 2, 2, false, OPERATOR, Standard.IDIV),
+                new Operation(POW, "^", 2, 3, true, OPERATOR, Standard.POW),
+                new Operation(LPAREN, "(", 0, 0, false, SYNTAX, null),
+                new Operation(RPAREN, ")", 0, 0, false, SYNTAX, null),
+                new Operation(BAD, "", 0, 0, false, SYNTAX, null));
+        }
+
+        // Счётчик операторов для правила "не больше MAX_OPERATORS"
+        private static final class CountingTokens extends Tokens {
+            private int operators;
 
-    static class ExpressionEvaluator {
-        private static final Set<String> OPERATORS = Set.of("+", "-", "*", "/", "^", "//");
-        private static final Map<String, Integer> PRECEDENCE = Map.of(
-            "+", 1,
-            "-", 1,
-            "*", 2,
-            "/", 2,
-            "//", 2,
-            "^", 3
-        );
-
-        public boolean validateExpression(String expr) {
-            expr = expr.trim();
-            if (!expr.matches("^[0-9\\-].*[0-9]$")) {  // теперь может начинаться с минуса
-                return false;
+            CountingTokens(int capacity, UserFunction[] functions) {
+                super(capacity, functions);
             }
-            int operatorsCount = countOperators(expr);
-            return operatorsCount <= 99;
-        }
 
-        private int countOperators(String expr) {
-            int count = 0;
-            Pattern p = Pattern.compile("\\+|\\-|\\*|/|//|\\^");
-            Matcher m = p.matcher(expr);
-            while (m.find()) count++;
-            return count;
+            void countOperator(int position) {
+                if (++operators == MAX_OPERATORS + 1) violate(position, "операторов больше " + MAX_OPERATORS);
+            }
         }
 
-        public double evaluate(String expr) throws Exception {
-            List<String> tokens = tokenize(expr);
-            List<String> rpn = infixToRPN(tokens);
-            return evalRPN(rpn);
-        }
+        // Правила относятся к тексту без крайних пробелов: не короче двух символов, начинается с цифры
+        // или минуса, кончается цифрой, операторов не больше MAX_OPERATORS. Скобки здесь не проверяются:
+        // непарная скобка — ошибка перевода в ОПН. Неразбираемая запись вроде "1.2.3" становится BAD,
+        // ошибка о ней выдаётся в infixToRPN.
+        @Override
+        protected Tokens scan(CharSequence expr, UserFunction[] functions) {
+            CountingTokens tokens = new CountingTokens(expr.length(), functions);
+            int first = 0, last = expr.length();
+            while (first < last && expr.charAt(first) <= ' ') first++;
+            while (last > first && expr.charAt(last - 1) <= ' ') last--;
+            if (last - first < 2) {
+                tokens.violate(first, "выражение слишком короткое");
+            } else if (!isAsciiDigit(expr.charAt(first)) && expr.charAt(first) != '-') {
+                tokens.violate(first, "выражение должно начинаться с числа");  // теперь может начинаться с минуса
+            }
 
-        private List<String> tokenize(String expr) {
-            List<String> tokens = new ArrayList<>();
             int i = 0;
             while (i < expr.length()) {
                 char c = expr.charAt(i);
 
                 // Пропускаем пробелы
                 if (Character.isWhitespace(c)) {
+                    if (isLineBreak(c) && i >= first && i < last) tokens.violate(i, "перевод строки внутри выражения");
                     i++;
                     continue;
                 }
 
                 // Если число (с возможным унарным минусом)
-                if (c == '-' && (i == 0 || expr.charAt(i - 1) == '(' || OPERATORS.contains(String.valueOf(expr.charAt(i - 1))))) {
+                if (c == '-' && (i == 0 || expr.charAt(i - 1) == '(' || isOperatorChar(expr.charAt(i - 1)))) {
                     // унарный минус, читаем число с минусом
+                    tokens.countOperator(i);
                     int start = i;
                     i++; // пропускаем минус
                     while (i < expr.length() && (Character.isDigit(expr.charAt(i)) || expr.charAt(i) == '.')) i++;
-                    tokens.add(expr.substring(start, i));
+                    addNumber(tokens, expr, start, i);
                     continue;
                 }
 
                 if (Character.isDigit(c) || c == '.') {
                     int start = i;
                     while (i < expr.length() && (Character.isDigit(expr.charAt(i)) || expr.charAt(i) == '.')) i++;
-                    tokens.add(expr.substring(start, i));
+                    addNumber(tokens, expr, start, i);
+                    continue;
+                }
+
+                // Имя переменной
+                if (Character.isLetter(c) || c == '_') {
+                    int start = i;
+                    while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '_')) i++;
+                    tokens.addName(expr.subSequence(start, i).toString());
                     continue;
                 }
 
-                // операторы
+                // операторы; "//" считается за два оператора
                 if (c == '/') {
+                    tokens.countOperator(i);
                     if (i + 1 < expr.length() && expr.charAt(i + 1) == '/') {
-                        tokens.add("//");
+                        tokens.countOperator(i + 1);
+                        tokens.add(IDIV);
                         i += 2;
                     } else {
-                        tokens.add("/");
+                        tokens.add(DIV);
                         i++;
                     }
                     continue;
                 }
 
-                if (c == '+' || c == '-' || c == '*' || c == '^' || c == '(' || c == ')') {
-                    tokens.add(String.valueOf(c));
-                    i++;
-                    continue;
-                }
-
-                // Если символ неизвестный
-                throw new RuntimeException("Неизвестный символ: " + c);
-            }
-            return tokens;
-        }
-
-        private List<String> infixToRPN(List<String> tokens) throws Exception {
-            List<String> output = new ArrayList<>();
-            Deque<String> stack = new ArrayDeque<>();
-
-            for (String token : tokens) {
-                if (isNumber(token)) {
-                    output.add(token);
-                } else if (OPERATORS.contains(token)) {
-                    while (!stack.isEmpty() && OPERATORS.contains(stack.peek())) {
-                        String opTop = stack.peek();
-                        if ((isLeftAssociative(token) && PRECEDENCE.get(token) <= PRECEDENCE.get(opTop)) ||
-                            (!isLeftAssociative(token) && PRECEDENCE.get(token) < PRECEDENCE.get(opTop))) {
-                            output.add(stack.pop());
-                        } else {
-                            break;
-                        }
-                    }
-                    stack.push(token);
-                } else if (token.equals("(")) {
-                    stack.push(token);
-                } else if (token.equals(")")) {
-                    while (!stack.isEmpty() && !stack.peek().equals("(")) {
-                        output.add(stack.pop());
-                    }
-                    if (stack.isEmpty() || !stack.peek().equals("(")) {
-                        throw new Exception("Скобки расставлены неверно");
+                byte op;
+                switch (c) {
+                    case '+' -> op = ADD;
+                    case '-' -> op = SUB;
+                    case '*' -> op = MUL;
+                    case '^' -> op = POW;
+                    case '(' -> op = LPAREN;
+                    case ')' -> op = RPAREN;
+                    // Если символ неизвестный
+                    default -> {
+                        if (isLineBreak(c) && i >= first && i < last) tokens.violate(i, "перевод строки внутри выражения");
+                        tokens.fail(new EvaluationException(EvaluatorMetrics.ErrorKind.UNKNOWN_SYMBOL, "Неизвестный символ: " + c));
+                        i++;
+                        continue;
                     }
-                    stack.pop();
-                } else {
-                    throw new Exception("Неизвестный токен: " + token);
                 }
+                if (kind(op) == OPERATOR) tokens.countOperator(i);
+                tokens.add(op);
+                i++;
             }
 
-            while (!stack.isEmpty()) {
-                String op = stack.pop();
-                if (op.equals("(") || op.equals(")")) {
-                    throw new Exception("Скобки расставлены неверно");
-                }
-                output.add(op);
+            if (last - first >= 2 && !isAsciiDigit(expr.charAt(last - 1))) {
+                tokens.violate(last - 1, "выражение должно заканчиваться числом");
             }
-            return output;
+            return tokens;
         }
 
-        private boolean isNumber(String s) {
-            try {
-                Double.parseDouble(s);
-                return true;
-            } catch (Exception e) {
-                return false;
-            }
+        // Символы, после которых минус считается унарным
+        private static boolean isOperatorChar(char c) {
+            return c == '+' || c == '-' || c == '*' || c == '/' || c == '^';
         }
 
-        private boolean isLeftAssociative(String op) {
-            return !op.equals("^");
+        private static void addNumber(Tokens tokens, CharSequence expr, int start, int end) {
+            if (!tokens.addNumber(expr, start, end)) tokens.addBad(expr.subSequence(start, end).toString());
         }
 
-        private double evalRPN(List<String> tokens) throws Exception {
-            Deque<Double> stack = new ArrayDeque<>();
-            for (String token : tokens) {
-                if (isNumber(token)) {
-                    stack.push(Double.parseDouble(token));
-                } else {
-                    if (stack.size() < 2) throw new Exception("Ошибка в выражении");
-
-                    double b = stack.pop();
-                    double a = stack.pop();
-
-                    switch (token) {
-                        case "+" -> stack.push(a + b);
-                        case "-" -> stack.push(a - b);
-                        case "*" -> stack.push(a * b);
-                        case "/" -> {
-                            if (b == 0) throw new Exception("Деление на ноль");
-                            stack.push(a / b);
-                        }
-                        case "//" -> {
-                            if (b == 0) throw new Exception("Деление на ноль");
-                            stack.push((double)((long)a / (long)b));
-                        }
-                        case "^" -> stack.push(Math.pow(a, b));
-                        default -> throw new Exception("Неизвестный оператор " + token);
-                    }
-                }
-            }
-            if (stack.size() != 1) throw new Exception("Ошибка вычисления");
-            return stack.pop();
+        @Override
+        protected String underflowMessage(byte op, UserFunction[] functions) {
+            return "Ошибка в выражении";
         }
-    }
-
-    static class ConsoleView {
-        private final Scanner scanner = new Scanner(System.in);
 
-        public String getInputExpression() {
-            System.out.print("Введите математическое выражение: ");
-            return scanner.nextLine();
+        @Override
+        protected String bracketMessage() {
+            return "Скобки расставлены неверно";
         }
 
-        public void showResult(double result) {
-            System.out.println("Результат: " + result);
+        @Override
+        protected String invalidMessage() {
+            return "Выражение невалидно. Оно должно начинаться и заканчиваться числом, и содержать не более 100 слагаемых.";
         }
 
-        public void showError(String message) {
-            System.err.println("Ошибка: " + message);
-        }
-    }
-
-    static class CalculatorController {
-        private final ExpressionEvaluator model;
-        private final ConsoleView view;
-
-        public CalculatorController(ExpressionEvaluator model, ConsoleView view) {
-            this.model = model;
-            this.view = view;
-        }
-
-        public void run() {
-            try {
-                String expr = view.getInputExpression();
-                if (!model.validateExpression(expr)) {
-                    view.showError("Выражение невалидно. Оно должно начинаться и заканчиваться числом, и содержать не более 100 слагаемых.");
-                    return;
-                }
-                double result = model.evaluate(expr);
-                view.showResult(result);
-            } catch (Exception e) {
-                view.showError(e.getMessage());
-            }
+        // Интерактивный режим считает одно выражение
+        @Override
+        protected boolean repeatsInput() {
+            return false;
         }
     }
 
     public static void main(String[] args) {
-        ExpressionEvaluator model = new ExpressionEvaluator();
-        ConsoleView view = new ConsoleView();
-        CalculatorController controller = new CalculatorController(model, view);
-
-        controller.run();
+        CalculatorLauncher.run(DIALECT, args);
     }
 }
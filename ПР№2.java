@@ -1,106 +1,161 @@
-import java.util.*;
-import java.util.regex.*;
-
+import calculator.engine.CalculatorLauncher;
+import calculator.engine.Dialect;
+import calculator.engine.ExpressionEvaluator;
+import calculator.engine.ExpressionEvaluator.EvaluationException;
+import calculator.engine.ExpressionEvaluator.EvaluatorMetrics;
+import calculator.engine.ExpressionEvaluator.Tokens;
+import calculator.engine.ExpressionEvaluator.UserFunction;
+import calculator.engine.Operation;
+import calculator.engine.Operation.Standard;
+
+// Калькулятор ПР№2: + - * / ^ ** и постфиксный !, log( и exp(, скобки, не больше 15 слагаемых.
+// Здесь только синтаксис (Dialect): таблица операций, разбор текста и сообщения. Вычисление, кэши,
+// хранилище программ, метрики и сервер — общий движок из модуля engine (пакет calculator.engine).
+// Запуск одним файлом (JDK 17+), движок — собранный jar:
+//   mvn -B -q package -pl engine && java -cp engine/target/calculator-engine-1.0-SNAPSHOT.jar ПР№2.java
 public class Main {
+    public static final Dialect DIALECT = new Syntax();
+
+    static final class Syntax extends Dialect {
+        private static final int MAX_TERMS = 15;
+
+        Syntax() {
+            super(
+                new Operation(ADD, "+", 2, 2, false, OPERATOR, Standard.ADD),
+                new Operation(SUB, "-", 2, 2, false, OPERATOR, Standard.SUB),
+                new Operation(MUL, "*", 2, 3, false, OPERATOR, Standard.MUL),
+                new Operation(DIV, "/", 2, 3, false, OPERATOR, Standard.DIV),
+                new Operation(POW, "^", 2, 4, true, OPERATOR, Standard.POW),
+                new Operation(POW_STAR, "**", 2, 4, true, OPERATOR, Standard.POW),
+                new Operation(FACT, "!", 1, 5, true, POSTFIX, new ModularFactorial()),  // самый высокий приоритет
+                new Operation(LOG, "log", 1, 0, false, FUNCTION, new StrictLogarithm()),
+                new Operation(EXP, "exp", 1, 0, false, FUNCTION, Standard.EXP),
+                new Operation(LPAREN, "(", 0, 0, false, SYNTAX, null),
+                new Operation(RPAREN, ")", 0, 0, false, SYNTAX, null),
+                new Operation(BAD, "", 0, 0, false, SYNTAX, null));
+        }
 
-    static class ExpressionEvaluator {
-        private static final Set<String> OPERATORS = Set.of("+", "-", "*", "/", "^", "**", "!");
-        private static final Set<String> FUNCTIONS = Set.of("log", "exp");
+        // n! берётся из таблицы. Как и при умножении в цикле, после 20! long переполняется и хранит
+        // n! по модулю 2^64; 66! делится на 2^64, так что дальше значения нулевые и таблицы хватает для любого n.
+        // Производная после 20! — от гамма-функции, а не от значения по модулю.
+        private static final class ModularFactorial extends Operation.Factorial {
+            private static final int MAX_LONG_FACTORIAL = 20;
+            private static final long[] FACTORIALS = new long[66];
+            static {
+                FACTORIALS[0] = 1;
+                for (int i = 1; i < FACTORIALS.length; i++) FACTORIALS[i] = FACTORIALS[i - 1] * i;
+            }
 
-        private static final Map<String, Integer> PRECEDENCE = Map.ofEntries(
-            Map.entry("!", 5),       // самый высокий приоритет (факториал)
-            Map.entry("**", 4),      // степень (правоассоциативный)
-            Map.entry("^", 4),       // степень (правоассоциативный)
-            Map.entry("*", 3),
-            Map.entry("/", 3),
-            Map.entry("+", 2),
-            Map.entry("-", 2)
-        );
+            ModularFactorial() {
+                super("Факториал только для неотрицательных целых чисел");
+            }
 
-        // Проверка баланса скобок
-        public boolean checkBracketsBalance(String expr) {
-            int count = 0;
-            for (char c : expr.toCharArray()) {
-                if (c == '(') count++;
-                else if (c == ')') {
-                    count--;
-                    if (count < 0) return false;
-                }
+            @Override
+            protected double integer(int n) {
+                return n < FACTORIALS.length ? FACTORIALS[n] : 0;
             }
-            return count == 0;
-        }
 
-        public boolean validateExpression(String expr) {
-            expr = expr.trim();
-            if (!checkBracketsBalance(expr)) return false;
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                double gamma = a > MAX_LONG_FACTORIAL ? ExpressionEvaluator.lanczosFactorial(a) : value;
+                return adjoint * gamma * ExpressionEvaluator.digamma(a + 1);
+            }
+        }
 
-            // Начало выражения: число, унарный минус, функция или скобка
-            if (!expr.matches("^(-?\\d|log\\(|exp\\(|\\().*")) return false;
+        // Логарифм по основанию 2; аргумент <= 0 — ошибка и в double
+        private static final class StrictLogarithm extends Operation.Logarithm {
+            private static final double LN2 = Math.log(2);
 
-            // Конец выражения: число, факториал или закрывающая скобка
-            if (!expr.matches(".*(\\d|!|\\))$")) return false;
+            StrictLogarithm() {
+                super("Логарифм аргумента <= 0");
+            }
 
-            int termsCount = countTerms(expr);
-            if (termsCount > 15) return false;
+            @Override
+            public double apply(double a, double b) throws Exception {
+                if (a <= 0) throw new Exception("Логарифм аргумента <= 0");
+                return Math.log(a) / LN2; // лог по основанию 2
+            }
 
-            return true;
+            @Override
+            public double derivative(int argument, double adjoint, double a, double b, double value) {
+                return adjoint / (a * LN2);
+            }
         }
 
-        private int countTerms(String expr) {
-            // Подсчёт верхнеуровневых слагаемых (учитываем скобки)
-            int count = 1;
-            int depth = 0;
-            for (int i = 0; i < expr.length(); i++) {
-                char c = expr.charAt(i);
-                if (c == '(') depth++;
-                else if (c == ')') depth--;
-                else if ((c == '+' || c == '-') && depth == 0) {
-                    if (i > 0) {
-                        char prev = expr.charAt(i - 1);
-                        if (prev != '+' && prev != '-' && prev != '*' && prev != '/' && prev != '^' && prev != '(') {
-                            count++;
-                        }
-                    }
-                }
+        // Счётчик слагаемых для правила "не больше MAX_TERMS"
+        private static final class TermTokens extends Tokens {
+            private int terms = 1;
+
+            TermTokens(int capacity, UserFunction[] functions) {
+                super(capacity, functions);
             }
-            return count;
-        }
 
-        public double evaluate(String expr) throws Exception {
-            List<String> tokens = tokenize(expr);
-            List<String> rpn = infixToRPN(tokens);
-            return evalRPN(rpn);
+            // Верхнеуровневый + или - не сразу после оператора или скобки начинает новое слагаемое
+            void countSign(CharSequence expr, int position, int first) {
+                if (depth() != 0 || position == first) return;
+                char prev = expr.charAt(position - 1);
+                if (prev == '+' || prev == '-' || prev == '*' || prev == '/' || prev == '^' || prev == '(') return;
+                if (++terms == MAX_TERMS + 1) violate(position, "слагаемых больше " + MAX_TERMS);
+            }
         }
 
-        private List<String> tokenize(String expr) throws Exception {
-            List<String> tokens = new ArrayList<>();
+        // Правила относятся к тексту без крайних пробелов: начинается с числа, унарного минуса перед
+        // цифрой, функции со скобкой или скобки, кончается числом, ! или скобкой, скобки сбалансированы,
+        // слагаемых не больше MAX_TERMS. Неразбираемая запись вроде "1.2.3" становится BAD,
+        // ошибка о ней выдаётся в infixToRPN.
+        @Override
+        protected Tokens scan(CharSequence expr, UserFunction[] functions) {
+            TermTokens tokens = new TermTokens(expr.length(), functions);
+            int first = 0, last = expr.length();
+            while (first < last && expr.charAt(first) <= ' ') first++;
+            while (last > first && expr.charAt(last - 1) <= ' ') last--;
+            boolean validStart = first < last && (isAsciiDigit(expr.charAt(first))
+                    || expr.charAt(first) == '-' && first + 1 < last && isAsciiDigit(expr.charAt(first + 1))
+                    || startsWith(expr, "log(", first) || startsWith(expr, "exp(", first) || expr.charAt(first) == '('
+                    || startsWithCall(expr, first, functions));
+            if (!validStart) {
+                tokens.violate(first, "выражение должно начинаться с числа, унарного минуса, функции или скобки");
+            }
+
             int i = 0;
             while (i < expr.length()) {
                 char c = expr.charAt(i);
 
                 if (Character.isWhitespace(c)) {
+                    if (isLineBreak(c) && i >= first && i < last) tokens.violate(i, "перевод строки внутри выражения");
                     i++;
                     continue;
                 }
 
                 // Функции log, exp
-                if (expr.startsWith("log(", i)) {
-                    tokens.add("log");
+                if (startsWith(expr, "log(", i)) {
+                    tokens.add(LOG);
                     i += 3;
                     continue;
                 }
-                if (expr.startsWith("exp(", i)) {
-                    tokens.add("exp");
+                if (startsWith(expr, "exp(", i)) {
+                    tokens.add(EXP);
                     i += 3;
                     continue;
                 }
 
+                // Имя функции пользователя или переменной; log и exp без скобки по-прежнему ошибка
+                if (Character.isLetter(c) || c == '_') {
+                    int start = i;
+                    while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '_')) i++;
+                    String name = expr.subSequence(start, i).toString();
+                    if (name.equals("log") || name.equals("exp")) tokens.fail(new EvaluationException(EvaluatorMetrics.ErrorKind.UNKNOWN_SYMBOL, "Неизвестный символ: " + c));
+                    else tokens.addName(name);
+                    continue;
+                }
+
                 // Число с возможным унарным минусом
-                if ((c == '-' && (i == 0 || expr.charAt(i - 1) == '(' || OPERATORS.contains(String.valueOf(expr.charAt(i - 1))) || expr.charAt(i - 1) == ','))) {
+                if ((c == '-' && (i == 0 || expr.charAt(i - 1) == '(' || isOperatorChar(expr.charAt(i - 1)) || expr.charAt(i - 1) == ','))) {
+                    tokens.countSign(expr, i, first);
                     int start = i;
                     i++;
                     while (i < expr.length() && (Character.isDigit(expr.charAt(i)) || expr.charAt(i) == '.')) i++;
-                    tokens.add(expr.substring(start, i));
+                    addNumber(tokens, expr, start, i);
                     continue;
                 }
 
@@ -108,201 +163,98 @@ public class Main {
                 if (Character.isDigit(c) || c == '.') {
                     int start = i;
                     while (i < expr.length() && (Character.isDigit(expr.charAt(i)) || expr.charAt(i) == '.')) i++;
-                    tokens.add(expr.substring(start, i));
+                    addNumber(tokens, expr, start, i);
                     continue;
                 }
 
                 // Два символа - оператор **?
                 if (c == '*' && i + 1 < expr.length() && expr.charAt(i + 1) == '*') {
-                    tokens.add("**");
+                    tokens.add(POW_STAR);
                     i += 2;
                     continue;
                 }
 
                 // Операторы + - * / ^ !
-                if ("+-*/^()!".indexOf(c) != -1) {
-                    tokens.add(String.valueOf(c));
-                    i++;
-                    continue;
-                }
-
-                throw new Exception("Неизвестный символ: " + c);
-            }
-
-            return tokens;
-        }
-
-        private List<String> infixToRPN(List<String> tokens) throws Exception {
-            List<String> output = new ArrayList<>();
-            Deque<String> stack = new ArrayDeque<>();
-
-            for (int i = 0; i < tokens.size(); i++) {
-                String token = tokens.get(i);
-
-                if (isNumber(token)) {
-                    output.add(token);
-                } else if (FUNCTIONS.contains(token)) {
-                    stack.push(token);
-                } else if (token.equals("(")) {
-                    stack.push(token);
-                } else if (token.equals(")")) {
-                    while (!stack.isEmpty() && !stack.peek().equals("(")) {
-                        output.add(stack.pop());
+                byte op;
+                switch (c) {
+                    case '+' -> {
+                        tokens.countSign(expr, i, first);
+                        op = ADD;
                     }
-                    if (stack.isEmpty()) throw new Exception("Несбалансированные скобки");
-                    stack.pop(); // убираем "("
-
-                    // Если сверху функция - выталкиваем её в output
-                    if (!stack.isEmpty() && FUNCTIONS.contains(stack.peek())) {
-                        output.add(stack.pop());
+                    case '-' -> {
+                        tokens.countSign(expr, i, first);
+                        op = SUB;
                     }
-                } else if (OPERATORS.contains(token)) {
-                    if (token.equals("!")) {
-                        // Факториал — унарный постфиксный оператор, сразу добавляем в output
-                        output.add(token);
-                        continue;
+                    case '*' -> op = MUL;
+                    case '/' -> op = DIV;
+                    case '^' -> op = POW;
+                    case '!' -> op = FACT;
+                    case '(' -> {
+                        tokens.open(i);
+                        op = LPAREN;
                     }
-
-                    while (!stack.isEmpty() && OPERATORS.contains(stack.peek())) {
-                        String opTop = stack.peek();
-                        int prec1 = PRECEDENCE.getOrDefault(token, 0);
-                        int prec2 = PRECEDENCE.getOrDefault(opTop, 0);
-
-                        // Правоассоциативные степени
-                        boolean rightAssociative = token.equals("^") || token.equals("**");
-
-                        if ((rightAssociative && prec1 < prec2) || (!rightAssociative && prec1 <= prec2)) {
-                            output.add(stack.pop());
-                        } else break;
+                    case ')' -> {
+                        tokens.close(i);
+                        op = RPAREN;
+                    }
+                    default -> {
+                        if (isLineBreak(c) && i >= first && i < last) tokens.violate(i, "перевод строки внутри выражения");
+                        tokens.fail(new EvaluationException(EvaluatorMetrics.ErrorKind.UNKNOWN_SYMBOL, "Неизвестный символ: " + c));
+                        i++;
+                        continue;
                     }
-                    stack.push(token);
-                } else {
-                    throw new Exception("Неизвестный токен: " + token);
                 }
+                tokens.add(op);
+                i++;
             }
 
-            while (!stack.isEmpty()) {
-                String op = stack.pop();
-                if (op.equals("(") || op.equals(")")) {
-                    throw new Exception("Несбалансированные скобки");
+            tokens.checkClosed();
+            if (first < last) {
+                char end = expr.charAt(last - 1);
+                if (!isAsciiDigit(end) && end != '!' && end != ')') {
+                    tokens.violate(last - 1, "выражение должно заканчиваться числом, факториалом или закрывающей скобкой");
                 }
-                output.add(op);
             }
-
-            return output;
+            return tokens;
         }
 
-        private boolean isNumber(String s) {
-            try {
-                Double.parseDouble(s);
-                return true;
-            } catch (Exception e) {
-                return false;
-            }
+        // Символы, после которых минус считается унарным
+        private static boolean isOperatorChar(char c) {
+            return c == '+' || c == '-' || c == '*' || c == '/' || c == '^' || c == '!';
         }
 
-        private double evalRPN(List<String> tokens) throws Exception {
-            Deque<Double> stack = new ArrayDeque<>();
-
-            for (String token : tokens) {
-                if (isNumber(token)) {
-                    stack.push(Double.parseDouble(token));
-                } else if (FUNCTIONS.contains(token)) {
-                    if (stack.isEmpty()) throw new Exception("Ошибка: функция " + token + " без аргумента");
-                    double arg = stack.pop();
-                    switch (token) {
-                        case "log" -> {
-                            if (arg <= 0) throw new Exception("Логарифм аргумента <= 0");
-                            stack.push(Math.log(arg) / Math.log(2)); // лог по основанию 2
-                        }
-                        case "exp" -> stack.push(Math.exp(arg));
-                        default -> throw new Exception("Неизвестная функция: " + token);
-                    }
-                } else {
-                    if (token.equals("!")) {
-                        if (stack.isEmpty()) throw new Exception("Факториал без числа");
-                        double val = stack.pop();
-                        if (val < 0 || val != Math.floor(val)) throw new Exception("Факториал только для неотрицательных целых чисел");
-                        stack.push((double) factorial((int) val));
-                        continue;
-                    }
-
-                    if (stack.size() < 2) throw new Exception("Ошибка в выражении, оператор " + token);
-
-                    double b = stack.pop();
-                    double a = stack.pop();
-
-                    switch (token) {
-                        case "+" -> stack.push(a + b);
-                        case "-" -> stack.push(a - b);
-                        case "*" -> stack.push(a * b);
-                        case "/" -> {
-                            if (b == 0) throw new Exception("Деление на ноль");
-                            stack.push(a / b);
-                        }
-                        case "^", "**" -> stack.push(Math.pow(a, b));
-                        default -> throw new Exception("Неизвестный оператор " + token);
-                    }
-                }
+        private static boolean startsWithCall(CharSequence expr, int at, UserFunction[] functions) {
+            for (UserFunction function : functions) {
+                if (startsWith(expr, function.name() + "(", at)) return true;
             }
-
-            if (stack.size() != 1) throw new Exception("Ошибка вычисления");
-
-            return stack.pop();
-        }
-
-        private long factorial(int n) {
-            long res = 1;
-            for (int i = 2; i <= n; i++) res *= i;
-            return res;
-        }
-    }
-
-    static class ConsoleView {
-        private final Scanner scanner = new Scanner(System.in);
-
-        public String getInputExpression() {
-            System.out.print("Введите математическое выражение: ");
-            return scanner.nextLine();
+            return false;
         }
 
-        public void showResult(double result) {
-            System.out.println("Результат: " + result);
+        private static void addNumber(Tokens tokens, CharSequence expr, int start, int end) {
+            if (!tokens.addNumber(expr, start, end)) tokens.addBad(expr.subSequence(start, end).toString());
         }
 
-        public void showError(String message) {
-            System.err.println("Ошибка: " + message);
+        @Override
+        protected String underflowMessage(byte op, UserFunction[] functions) {
+            if (op >= CALL) return "Ошибка: функция " + functions[op - CALL].name() + " без аргумента";
+            if (kind(op) == FUNCTION) return "Ошибка: функция " + symbol(op) + " без аргумента";
+            if (op == FACT) return "Факториал без числа";
+            return "Ошибка в выражении, оператор " + symbol(op);
         }
-    }
-
-    static class CalculatorController {
-        private final ExpressionEvaluator model;
-        private final ConsoleView view;
 
-        public CalculatorController(ExpressionEvaluator model, ConsoleView view) {
-            this.model = model;
-            this.view = view;
+        @Override
+        protected String invalidMessage() {
+            return "Выражение невалидно: проверьте баланс скобок, количество слагаемых (до 15), и корректность.";
         }
 
-        public void run() {
-            try {
-                String expr = view.getInputExpression();
-                if (!model.validateExpression(expr)) {
-                    view.showError("Выражение невалидно: проверьте баланс скобок, количество слагаемых (до 15), и корректность.");
-                    return;
-                }
-                double result = model.evaluate(expr);
-                view.showResult(result);
-            } catch (Exception e) {
-                view.showError(e.getMessage());
-            }
+        // Интерактивный режим считает одно выражение
+        @Override
+        protected boolean repeatsInput() {
+            return false;
         }
     }
 
     public static void main(String[] args) {
-        ExpressionEvaluator model = new ExpressionEvaluator();
-        ConsoleView view = new ConsoleView();
-        CalculatorController controller = new CalculatorController(model, view);
-        controller.run();
+        CalculatorLauncher.run(DIALECT, args);
     }
 }
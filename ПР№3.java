@@ -1,87 +1,104 @@
-import java.util.*;
-import java.util.regex.*;
-
+import calculator.engine.CalculatorLauncher;
+import calculator.engine.Dialect;
+import calculator.engine.ExpressionEvaluator.EvaluationException;
+import calculator.engine.ExpressionEvaluator.EvaluatorMetrics;
+import calculator.engine.ExpressionEvaluator.Tokens;
+import calculator.engine.ExpressionEvaluator.UserFunction;
+import calculator.engine.Operation;
+import calculator.engine.Operation.Standard;
+
+// Калькулятор ПР№3: + - * / // ^ ** !, log и exp, скобки, не больше 15 операторов.
+// Здесь только синтаксис (Dialect): таблица операций, разбор текста и сообщения. Вычисление, кэши,
+// хранилище программ, метрики и сервер — общий движок из модуля engine (пакет calculator.engine).
+// Запуск одним файлом (JDK 17+), движок — собранный jar:
+//   mvn -B -q package -pl engine && java -cp engine/target/calculator-engine-1.0-SNAPSHOT.jar ПР№3.java
 public class Main {
+    public static final Dialect DIALECT = new Syntax();
+
+    static final class Syntax extends Dialect {
+        private static final int MAX_OPERATORS = 15;
+
+        Syntax() {
+            super(
+                new Operation(ADD, "+", 2, 1, false, OPERATOR, Standard.ADD),
+                new Operation(SUB, "-", 2, 1, false, OPERATOR, Standard.SUB),
+                new Operation(MUL, "*", 2, 2, false, OPERATOR, Standard.MUL),
+                new Operation(DIV, "/", 2, 2, false, OPERATOR, Standard.DIV),
+                new Operation(IDIV, "//", 2, 2, false, OPERATOR, Standard.IDIV),
+                new Operation(POW, "^", 2, 3, true, OPERATOR, Standard.POW),
+                new Operation(POW_STAR, "**", 2, 3, true, OPERATOR, Standard.POW),
+                new Operation(FACT, "!", 1, 4, true, OPERATOR,
+                    new Operation.Factorial("Факториал определен только для целых неотрицательных чисел")),
+                new Operation(LOG, "log", 1, 0, false, FUNCTION,
+                    new Operation.Logarithm("Логарифм определен только для положительных чисел")),
+                new Operation(EXP, "exp", 1, 0, false, FUNCTION, Standard.EXP),
+                new Operation(LPAREN, "(", 0, 0, false, SYNTAX, null),
+                new Operation(RPAREN, ")", 0, 0, false, SYNTAX, null));
+        }
 
-    static class ExpressionEvaluator {
-        private static final Set<String> OPERATORS = Set.of("+", "-", "*", "/", "^", "//", "**", "!");
-        private static final Set<String> FUNCTIONS = Set.of("log", "exp");
-        private static final Map<String, Integer> PRECEDENCE = Map.of(
-            "+", 1,
-            "-", 1,
-            "*", 2,
-            "/", 2,
-            "//", 2,
-            "^", 3,
-            "**", 3,
-            "!", 4
-        );
+        // Счётчик операторов для правила "не больше MAX_OPERATORS"
+        private static final class CountingTokens extends Tokens {
+            private int operators;
 
-        public boolean validateExpression(String expr) {
-            expr = expr.trim();
-            if (!expr.matches("^[0-9\\-].*[0-9)$]")) {
-                return false;
+            CountingTokens(int capacity, UserFunction[] functions) {
+                super(capacity, functions);
             }
-            if (!checkParentheses(expr)) {
-                return false;
-            }
-            int operatorsCount = countOperators(expr);
-            return operatorsCount <= 15;
-        }
 
-        private boolean checkParentheses(String expr) {
-            int balance = 0;
-            for (char c : expr.toCharArray()) {
-                if (c == '(') balance++;
-                if (c == ')') balance--;
-                if (balance < 0) return false;
+            void countOperator(int position) {
+                if (++operators == MAX_OPERATORS + 1) violate(position, "операторов больше " + MAX_OPERATORS);
             }
-            return balance == 0;
         }
 
-        private int countOperators(String expr) {
-            int count = 0;
-            Pattern p = Pattern.compile("\\+|\\-|\\*|/|//|\\^|\\*\\*|!");
-            Matcher m = p.matcher(expr);
-            while (m.find()) count++;
-            return count;
-        }
-
-        public double evaluate(String expr) throws Exception {
-            List<String> tokens = tokenize(expr);
-            List<String> rpn = infixToRPN(tokens);
-            return evalRPN(rpn);
-        }
+        // Правила относятся к тексту без крайних пробелов: не короче двух символов, начинается с цифры
+        // или минуса, кончается цифрой, скобкой или $, скобки сбалансированы, операторов не больше
+        // MAX_OPERATORS. Неразбираемая запись вроде "1.2.3" пропускается.
+        @Override
+        protected Tokens scan(CharSequence expr, UserFunction[] functions) {
+            CountingTokens tokens = new CountingTokens(expr.length(), functions);
+            int first = 0, last = expr.length();
+            while (first < last && expr.charAt(first) <= ' ') first++;
+            while (last > first && expr.charAt(last - 1) <= ' ') last--;
+            if (last - first < 2) {
+                tokens.violate(first, "выражение слишком короткое");
+            } else if (!isAsciiDigit(expr.charAt(first)) && expr.charAt(first) != '-') {
+                tokens.violate(first, "выражение должно начинаться с числа");
+            }
 
-        private List<String> tokenize(String expr) {
-            List<String> tokens = new ArrayList<>();
             int i = 0;
             while (i < expr.length()) {
                 char c = expr.charAt(i);
 
                 if (Character.isWhitespace(c)) {
+                    if (isLineBreak(c) && i >= first && i < last) tokens.violate(i, "перевод строки внутри выражения");
                     i++;
                     continue;
                 }
 
-                // Проверка функций (log, exp)
+                // Проверка функций (log, exp, затем функции пользователя), остальные имена — переменные
                 if (Character.isLetter(c)) {
                     int start = i;
                     while (i < expr.length() && Character.isLetter(expr.charAt(i))) i++;
-                    String func = expr.substring(start, i);
-                    if (FUNCTIONS.contains(func)) {
-                        tokens.add(func);
+                    if (i - start == 3 && startsWith(expr, "log", start)) {
+                        tokens.add(LOG);
                         continue;
                     }
-                    throw new RuntimeException("Неизвестная функция: " + func);
+                    if (i - start == 3 && startsWith(expr, "exp", start)) {
+                        tokens.add(EXP);
+                        continue;
+                    }
+                    // Цифры и "_" допустимы только после первой буквы и не меняют разбор log8 = log(8)
+                    while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '_')) i++;
+                    tokens.addName(expr.subSequence(start, i).toString());
+                    continue;
                 }
 
                 // Числа с унарным минусом
-                if (c == '-' && (i == 0 || expr.charAt(i - 1) == '(' || OPERATORS.contains(String.valueOf(expr.charAt(i - 1))))) {
+                if (c == '-' && (i == 0 || expr.charAt(i - 1) == '(' || isOperatorChar(expr.charAt(i - 1)))) {
+                    tokens.countOperator(i);
                     int start = i;
                     i++;
                     while (i < expr.length() && (Character.isDigit(expr.charAt(i)) || expr.charAt(i) == '.')) i++;
-                    tokens.add(expr.substring(start, i));
+                    tokens.addNumber(expr, start, i);
                     continue;
                 }
 
@@ -89,214 +106,92 @@ public class Main {
                 if (Character.isDigit(c) || c == '.') {
                     int start = i;
                     while (i < expr.length() && (Character.isDigit(expr.charAt(i)) || expr.charAt(i) == '.')) i++;
-                    tokens.add(expr.substring(start, i));
+                    tokens.addNumber(expr, start, i);
                     continue;
                 }
 
-                // Операторы
+                // Операторы; "//" и "**" считаются за два оператора
                 if (c == '/') {
+                    tokens.countOperator(i);
                     if (i + 1 < expr.length() && expr.charAt(i + 1) == '/') {
-                        tokens.add("//");
+                        tokens.countOperator(i + 1);
+                        tokens.add(IDIV);
                         i += 2;
                     } else {
-                        tokens.add("/");
+                        tokens.add(DIV);
                         i++;
                     }
                     continue;
                 }
 
                 if (c == '*') {
+                    tokens.countOperator(i);
                     if (i + 1 < expr.length() && expr.charAt(i + 1) == '*') {
-                        tokens.add("**");
+                        tokens.countOperator(i + 1);
+                        tokens.add(POW_STAR);
                         i += 2;
                     } else {
-                        tokens.add("*");
+                        tokens.add(MUL);
                         i++;
                     }
                     continue;
                 }
 
-                if (c == '+' || c == '-' || c == '^' || c == '!' || c == '(' || c == ')') {
-                    tokens.add(String.valueOf(c));
-                    i++;
-                    continue;
-                }
-
-                throw new RuntimeException("Неизвестный символ: " + c);
-            }
-            return tokens;
-        }
-
-        private List<String> infixToRPN(List<String> tokens) throws Exception {
-            List<String> output = new ArrayList<>();
-            Deque<String> stack = new ArrayDeque<>();
-
-            for (String token : tokens) {
-                if (isNumber(token)) {
-                    output.add(token);
-                } else if (FUNCTIONS.contains(token)) {
-                    stack.push(token);
-                } else if (OPERATORS.contains(token)) {
-                    while (!stack.isEmpty() && OPERATORS.contains(stack.peek())) {
-                        String opTop = stack.peek();
-                        if ((isLeftAssociative(token) && PRECEDENCE.get(token) <= PRECEDENCE.get(opTop)) ||
-                            (!isLeftAssociative(token) && PRECEDENCE.get(token) < PRECEDENCE.get(opTop))) {
-                            output.add(stack.pop());
-                        } else {
-                            break;
-                        }
-                    }
-                    stack.push(token);
-                } else if (token.equals("(")) {
-                    stack.push(token);
-                } else if (token.equals(")")) {
-                    while (!stack.isEmpty() && !stack.peek().equals("(")) {
-                        output.add(stack.pop());
-                    }
-                    if (stack.isEmpty()) {
-                        throw new Exception("Несбалансированные скобки");
+                byte op;
+                switch (c) {
+                    case '+' -> op = ADD;
+                    case '-' -> op = SUB;
+                    case '^' -> op = POW;
+                    case '!' -> op = FACT;
+                    case '(' -> {
+                        tokens.open(i);
+                        op = LPAREN;
                     }
-                    stack.pop();
-                    if (!stack.isEmpty() && FUNCTIONS.contains(stack.peek())) {
-                        output.add(stack.pop());
+                    case ')' -> {
+                        tokens.close(i);
+                        op = RPAREN;
                     }
-                }
-            }
-
-            while (!stack.isEmpty()) {
-                String op = stack.pop();
-                if (op.equals("(")) {
-                    throw new Exception("Несбалансированные скобки");
-                }
-                output.add(op);
-            }
-            return output;
-        }
-
-        private boolean isNumber(String s) {
-            try {
-                Double.parseDouble(s);
-                return true;
-            } catch (Exception e) {
-                return false;
-            }
-        }
-
-        private boolean isLeftAssociative(String op) {
-            return !op.equals("^") && !op.equals("**") && !op.equals("!");
-        }
-
-        private double evalRPN(List<String> tokens) throws Exception {
-            Deque<Double> stack = new ArrayDeque<>();
-            for (String token : tokens) {
-                if (isNumber(token)) {
-                    stack.push(Double.parseDouble(token));
-                } else if (FUNCTIONS.contains(token)) {
-                    if (stack.isEmpty()) throw new Exception("Недостаточно аргументов для функции");
-                    double a = stack.pop();
-                    switch (token) {
-                        case "log" -> stack.push(Math.log(a) / Math.log(2));
-                        case "exp" -> stack.push(Math.exp(a));
-                        default -> throw new Exception("Неизвестная функция: " + token);
-                    }
-                } else {
-                    if (token.equals("!")) {
-                        if (stack.isEmpty()) throw new Exception("Недостаточно аргументов для факториала");
-                        double a = stack.pop();
-                        if (a < 0 || a != Math.floor(a)) {
-                            throw new Exception("Факториал определен только для целых неотрицательных чисел");
-                        }
-                        stack.push(factorial((int)a));
+                    default -> {
+                        if (isLineBreak(c) && i >= first && i < last) tokens.violate(i, "перевод строки внутри выражения");
+                        tokens.fail(new EvaluationException(EvaluatorMetrics.ErrorKind.UNKNOWN_SYMBOL, "Неизвестный символ: " + c));
+                        i++;
                         continue;
                     }
-
-                    if (stack.size() < 2) throw new Exception("Недостаточно операндов для оператора " + token);
-
-                    double b = stack.pop();
-                    double a = stack.pop();
-
-                    switch (token) {
-                        case "+" -> stack.push(a + b);
-                        case "-" -> stack.push(a - b);
-                        case "*" -> stack.push(a * b);
-                        case "/" -> {
-                            if (b == 0) throw new Exception("Деление на ноль");
-                            stack.push(a / b);
-                        }
-                        case "//" -> {
-                            if (b == 0) throw new Exception("Деление на ноль");
-                            stack.push((double)((long)a / (long)b));
-                        }
-                        case "^", "**" -> stack.push(Math.pow(a, b));
-                        default -> throw new Exception("Неизвестный оператор " + token);
-                    }
                 }
+                if (kind(op) == OPERATOR) tokens.countOperator(i);
+                tokens.add(op);
+                i++;
             }
-            if (stack.size() != 1) throw new Exception("Ошибка вычисления");
-            return stack.pop();
-        }
 
-        private double factorial(int n) {
-            if (n <= 1) return 1;
-            double result = 1;
-            for (int i = 2; i <= n; i++) {
-                result *= i;
+            tokens.checkClosed();
+            if (last - first >= 2) {
+                char end = expr.charAt(last - 1);
+                if (!isAsciiDigit(end) && end != ')' && end != '$') {
+                    tokens.violate(last - 1, "выражение должно заканчиваться числом или скобкой");
+                }
             }
-            return result;
-        }
-    }
-
-    static class ConsoleView {
-        private final Scanner scanner = new Scanner(System.in);
-
-        public String getInputExpression() {
-            System.out.print("Введите математическое выражение: ");
-            return scanner.nextLine();
-        }
-
-        public void showResult(double result) {
-            System.out.println("Результат: " + result);
+            return tokens;
         }
 
-        public void showError(String message) {
-            System.err.println("Ошибка: " + message);
+        // Символы, после которых минус считается унарным
+        private static boolean isOperatorChar(char c) {
+            return c == '+' || c == '-' || c == '*' || c == '/' || c == '^' || c == '!';
         }
-    }
 
-    static class CalculatorController {
-        private final ExpressionEvaluator model;
-        private final ConsoleView view;
-
-        public CalculatorController(ExpressionEvaluator model, ConsoleView view) {
-            this.model = model;
-            this.view = view;
+        @Override
+        protected String underflowMessage(byte op, UserFunction[] functions) {
+            if (kind(op) == FUNCTION) return "Недостаточно аргументов для функции";
+            if (op == FACT) return "Недостаточно аргументов для факториала";
+            return "Недостаточно операндов для оператора " + symbol(op);
         }
 
-        public void run() {
-            while (true) {
-                try {
-                    String expr = view.getInputExpression();
-                    if (expr.equalsIgnoreCase("exit")) {
-                        break;
-                    }
-                    if (!model.validateExpression(expr)) {
-                        view.showError("Выражение невалидно. Оно должно начинаться и заканчиваться числом/скобкой, содержать не более 15 операторов и иметь сбалансированные скобки.");
-                        continue;
-                    }
-                    double result = model.evaluate(expr);
-                    view.showResult(result);
-                } catch (Exception e) {
-                    view.showError(e.getMessage());
-                }
-            }
+        @Override
+        protected String invalidMessage() {
+            return "Выражение невалидно. Оно должно начинаться и заканчиваться числом/скобкой, содержать не более 15 операторов и иметь сбалансированные скобки.";
         }
     }
 
     public static void main(String[] args) {
-        ExpressionEvaluator model = new ExpressionEvaluator();
-        ConsoleView view = new ConsoleView();
-        CalculatorController controller = new CalculatorController(model, view);
-
-        controller.run();
+        CalculatorLauncher.run(DIALECT, args);
     }
 }
@@ -1,10 +1,11 @@
+import java.io.PrintStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 class DataItem {
-    private String key;
-    private String value;
-    private boolean readOnly;
+    private final String key;
+    private volatile String value;  // setValue может вызываться из другого потока, чем getValue
+    private final boolean readOnly;
 
     public DataItem(String key, String value, boolean readOnly) {
         this.key = key;
@@ -24,39 +25,69 @@ class DataItem {
     }
 }
 
+// Потокобезопасное хранилище. Чтение — без блокировок (ConcurrentHashMap.get). Запись идёт через compute,
+// который блокирует только ячейку таблицы с этим ключом, так что записи разных ключей не мешают друг другу.
+// Кэш согласован с базой: read-only элемент в базе нельзя заменить через save, а load и кэширование
+// выполняются под блокировкой той же ячейки базы, поэтому в кэше не может остаться заменённый элемент.
 class DataService {
     // Имитация БД
-    private final Map<String, DataItem> database = new HashMap<>();
+    private final Map<String, DataItem> database = new ConcurrentHashMap<>();
 
     // Кэш для read-only данных
     private final Map<String, DataItem> cache = new ConcurrentHashMap<>();
 
+    // Куда сообщать об обращениях к кэшу и базе
+    private final PrintStream log;
+
+    public DataService() {
+        this(System.out);
+    }
+
+    public DataService(PrintStream log) {
+        this.log = log;
+    }
+
     // Получить данные по ключу
     public DataItem getByKey(String key) {
-        if (cache.containsKey(key)) {
-            System.out.println("Возвращаем из кэша");
-            return cache.get(key);
+        DataItem cached = cache.get(key);
+        if (cached != null) {
+            log.println("Возвращаем из кэша");
+            return cached;
         }
         DataItem item = database.get(key);
         if (item != null && item.isReadOnly()) {
-            System.out.println("Кэшируем read-only элемент");
-            cache.put(key, item);
+            // Элемент кладётся в кэш, только если он всё ещё в базе: load мог заменить его после чтения
+            boolean[] added = new boolean[1];
+            database.computeIfPresent(key, (k, current) -> {
+                added[0] = current == item && cache.putIfAbsent(k, item) == null;
+                return current;
+            });
+            if (added[0]) log.println("Кэшируем read-only элемент");
         }
         return item;
     }
 
-    // Сохранить или обновить данные
+    // Сохранить или обновить данные. Проверка и запись атомарны: read-only элемент, уже лежащий в базе,
+    // не заменяется и изменяемым элементом с тем же ключом
     public void save(DataItem item) {
         if (item.isReadOnly()) {
             throw new IllegalArgumentException("Read-only данные нельзя изменять");
         }
-        database.put(item.getKey(), item);
-        System.out.println("Данные сохранены в базе");
+        database.compute(item.getKey(), (key, current) -> {
+            if (current != null && current.isReadOnly()) {
+                throw new IllegalArgumentException("Read-only данные нельзя изменять");
+            }
+            return item;
+        });
+        log.println("Данные сохранены в базе");
     }
 
-    // Добавить данные напрямую в базу (имитация первоначальной загрузки)
+    // Добавить данные напрямую в базу (имитация первоначальной загрузки); прежний элемент уходит и из кэша
     public void load(DataItem item) {
-        database.put(item.getKey(), item);
+        database.compute(item.getKey(), (key, current) -> {
+            cache.remove(key);
+            return item;
+        });
     }
 }
 